@@ -0,0 +1,186 @@
+/* This file is part of calliope.
+ *
+ *  calliope is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  calliope is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with calliope.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package calliope.core.json.corcode;
+import calliope.core.Utils;
+import java.io.File;
+import java.util.Random;
+import org.json.simple.JSONValue;
+
+/**
+ * Time the ways of reading the ranges of a CorCode: the progressive parser
+ * reporting offsets only or whole ranges, the same parser building the
+ * whole tree, the parser as it was before it stopped building the tree,
+ * and json-simple parsing it in one go. It is kept in bench, outside the
+ * jar: compile it against the built classes and lib to run it.
+ * @author desmond
+ */
+public class ParserBenchmark implements RangeComplete, RangeHandler
+{
+    /** size of the chunks fed to the progressive parsers */
+    static final int CHUNK = 8192;
+    /**
+     * The ways of parsing a CorCode
+     */
+    enum Mode
+    {
+        /** the progressive parser reporting offsets only */
+        OFFSETS( "offsets only" ),
+        /** the progressive parser reporting whole ranges */
+        RANGES( "whole ranges" ),
+        /** the progressive parser building the tree of objects */
+        OBJECTS( "building objects" ),
+        /** the progressive parser before it was rewritten */
+        LEGACY( "old parser" ),
+        /** json-simple parsing the whole CorCode at once */
+        JSON_SIMPLE( "json-simple" );
+        String label;
+        Mode( String label )
+        {
+            this.label = label;
+        }
+    }
+    /** number of ranges reported, so the work is not optimised away */
+    long count;
+    @Override
+    public void rangeComplete( int absoluteOffset, int len )
+    {
+        count += len;
+    }
+    @Override
+    public void rangeComplete( Range r )
+    {
+        count += r.len;
+    }
+    /**
+     * Make a CorCode with many short ranges
+     * @param numRanges the number of ranges
+     * @return the CorCode as JSON
+     */
+    static String makeCorCode( int numRanges )
+    {
+        String[] names = {"p","hi","l","lg","div","note"};
+        Random r = new Random( 1 );
+        StringBuilder sb = new StringBuilder();
+        sb.append("{ \"style\": \"TEI/default\", \"format\": \"STIL\", ");
+        sb.append("\"ranges\": [ ");
+        for ( int i=0;i<numRanges;i++ )
+        {
+            if ( i > 0 )
+                sb.append(", ");
+            sb.append("{ \"name\": \"");
+            sb.append( names[r.nextInt(names.length)] );
+            sb.append("\", \"reloff\": ");
+            sb.append( r.nextInt(100) );
+            sb.append(", \"len\": ");
+            sb.append( r.nextInt(400) );
+            if ( r.nextInt(4) == 0 )
+                sb.append(", \"annotations\": [ { \"rend\": \"italic\" } ]");
+            sb.append(" }");
+        }
+        sb.append(" ] }");
+        return sb.toString();
+    }
+    /**
+     * Feed a CorCode to a progressive parser in chunks
+     * @param json the CorCode
+     * @param mode the way to parse it, other than JSON_SIMPLE
+     * @return the sum of the range lengths
+     * @throws Exception if the parse failed
+     */
+    long progressive( String json, Mode mode ) throws Exception
+    {
+        count = 0;
+        ProgressiveParser pp = null;
+        LegacyParser lp = null;
+        if ( mode == Mode.LEGACY )
+            lp = new LegacyParser( this );
+        else if ( mode == Mode.RANGES )
+            pp = new ProgressiveParser( (RangeHandler)this );
+        else
+            pp = new ProgressiveParser( this, mode==Mode.OBJECTS );
+        char[] chunk = new char[CHUNK];
+        for ( int pos=0;pos<json.length();pos+=CHUNK )
+        {
+            int end = Math.min( json.length(), pos+CHUNK );
+            if ( lp != null )
+            {
+                // the old parser always reads a whole array
+                if ( end-pos < CHUNK )
+                    chunk = new char[end-pos];
+                json.getChars( pos, end, chunk, 0 );
+                lp.parseData( chunk );
+            }
+            else
+            {
+                json.getChars( pos, end, chunk, 0 );
+                pp.parseData( chunk, 0, end-pos );
+            }
+        }
+        return count;
+    }
+    /**
+     * Run one way of parsing repeatedly and print its mean time
+     * @param json the CorCode to parse
+     * @param mode the way to parse it
+     * @param iterations number of timed runs after the warm-up
+     * @throws Exception if the parse failed
+     */
+    void time( String json, Mode mode, int iterations ) throws Exception
+    {
+        long check = 0;
+        long start = 0;
+        for ( int i=-iterations;i<iterations;i++ )
+        {
+            // the first half warms up the JIT
+            if ( i == 0 )
+                start = System.nanoTime();
+            if ( mode == Mode.JSON_SIMPLE )
+                check += (JSONValue.parse(json)!=null)?1:0;
+            else
+                check += progressive( json, mode );
+        }
+        long ns = (System.nanoTime()-start)/iterations;
+        System.out.println( mode.label+": "+(ns/1000)+" us per parse ("
+            +check+")" );
+    }
+    /**
+     * Compare the parsers
+     * @param args [corcode-file] [iterations]
+     */
+    public static void main( String[] args )
+    {
+        try
+        {
+            String json;
+            int iterations = 20;
+            if ( args.length > 0 )
+                json = Utils.readStringFromFile( new File(args[0]) );
+            else
+                json = makeCorCode( 200000 );
+            if ( args.length > 1 )
+                iterations = Integer.parseInt( args[1] );
+            System.out.println("CorCode of "+json.length()+" chars");
+            ParserBenchmark pb = new ParserBenchmark();
+            for ( Mode mode : Mode.values() )
+                pb.time( json, mode, iterations );
+        }
+        catch ( Exception e )
+        {
+            e.printStackTrace( System.out );
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * This file is part of calliope.core.
+ *
+ *  calliope.core is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  calliope.core is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with calliope.core.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2015
+ */
+
+package calliope.core.json.corcode;
+
+import calliope.core.constants.JSONKeys;
+import calliope.core.exception.JSONException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+/**
+ * Check the progressive parser on small CorCodes with awkward shapes, in
+ * every mode and through RangeTable. Like ParserBenchmark it is kept in
+ * bench, outside the jar.
+ * @author desmond
+ */
+public class ParserChecks implements RangeComplete, RangeHandler
+{
+    /** sum of the range lengths reported */
+    long count;
+    /** number of checks that failed */
+    int failures;
+    /** the ways of parsing, by index */
+    static final String[] MODES = {"offsets","ranges","objects","table"};
+    @Override
+    public void rangeComplete( int absoluteOffset, int len )
+    {
+        count += len;
+    }
+    @Override
+    public void rangeComplete( Range r )
+    {
+        count += r.len;
+    }
+    /**
+     * Write a CorCode to a temporary file
+     * @param json the CorCode
+     * @return the file, deleted on exit
+     * @throws Exception if it could not be written
+     */
+    static File toFile( String json ) throws Exception
+    {
+        File f = File.createTempFile( "corcode", ".json" );
+        f.deleteOnExit();
+        try ( FileOutputStream fos = new FileOutputStream(f) )
+        {
+            fos.write( json.getBytes(StandardCharsets.UTF_8) );
+        }
+        return f;
+    }
+    /**
+     * Parse a CorCode in each mode and compare the lengths read
+     * @param name what the check is of
+     * @param json the CorCode
+     * @param total the expected sum of the range lengths
+     */
+    void accept( String name, String json, long total )
+    {
+        for ( int i=0;i<MODES.length;i++ )
+        {
+            try
+            {
+                parse( json, i );
+                if ( count != total )
+                    fail( name, MODES[i], "read "+count+" not "+total );
+            }
+            catch ( Exception e )
+            {
+                fail( name, MODES[i], e.toString() );
+            }
+        }
+    }
+    /**
+     * Parse a faulty CorCode in each mode and check that it is refused
+     * @param name what the check is of
+     * @param json the CorCode
+     */
+    void reject( String name, String json )
+    {
+        for ( int i=0;i<MODES.length;i++ )
+        {
+            try
+            {
+                parse( json, i );
+                fail( name, MODES[i], "accepted" );
+            }
+            catch ( JSONException e )
+            {
+            }
+            catch ( Exception e )
+            {
+                fail( name, MODES[i], e.toString() );
+            }
+        }
+    }
+    /**
+     * Check that a CorCode the parser reads is refused by RangeTable
+     * @param name what the check is of
+     * @param json the CorCode
+     */
+    void rejectTable( String name, String json )
+    {
+        try
+        {
+            parse( json, 3 );
+            fail( name, MODES[3], "accepted" );
+        }
+        catch ( JSONException e )
+        {
+        }
+        catch ( Exception e )
+        {
+            fail( name, MODES[3], e.toString() );
+        }
+    }
+    /**
+     * Check that a table keeps a CorCode's style and format
+     * @param name what the check is of
+     * @param json the CorCode
+     * @param style its style
+     * @param format its format
+     */
+    void keep( String name, String json, String style, String format )
+    {
+        try
+        {
+            RangeTable table = RangeTable.internalise( toFile(json) );
+            JSONObject copy = (JSONObject)JSONValue.parse( 
+                table.toJSONString() );
+            if ( !style.equals(copy.get(JSONKeys.STYLE)) 
+                || !format.equals(copy.get(JSONKeys.FORMAT)) )
+                fail( name, MODES[3], "wrote "+copy.get(JSONKeys.STYLE)
+                    +", "+copy.get(JSONKeys.FORMAT) );
+        }
+        catch ( Exception e )
+        {
+            fail( name, MODES[3], e.toString() );
+        }
+    }
+    /**
+     * Parse a CorCode one way, summing its range lengths in count
+     * @param json the CorCode
+     * @param mode the index of the way in MODES
+     * @throws Exception if it could not be parsed
+     */
+    void parse( String json, int mode ) throws Exception
+    {
+        count = 0;
+        if ( mode == 3 )
+        {
+            RangeTable table = RangeTable.internalise( toFile(json) );
+            for ( int j=0;j<table.size();j++ )
+                count += table.getLength( j );
+        }
+        else
+        {
+            ProgressiveParser pp = (mode==1)
+                ?new ProgressiveParser((RangeHandler)this)
+                :new ProgressiveParser( this, mode==2 );
+            pp.parse( new StringReader(json) );
+        }
+    }
+    /**
+     * Report a failed check
+     * @param name what the check was of
+     * @param mode the mode it failed in
+     * @param why what went wrong
+     */
+    void fail( String name, String mode, String why )
+    {
+        failures++;
+        System.out.println( name+" ("+mode+"): "+why );
+    }
+    /**
+     * Run the checks
+     * @param args unused
+     */
+    public static void main( String[] args )
+    {
+        ParserChecks pc = new ParserChecks();
+        pc.accept( "empty ranges",
+            "{ \"style\": \"TEI/drama\", \"ranges\": [] }", 0 );
+        pc.accept( "empty annotations", "{ \"ranges\": [ { \"name\": \"p\", "
+            +"\"reloff\": 0, \"len\": 5, \"annotations\": [ ] } ] }", 5 );
+        pc.accept( "ranges", "{ \"ranges\": [ { \"name\": \"p\", "
+            +"\"reloff\": 0, \"len\": 5 }, { \"name\": \"hi\", "
+            +"\"reloff\": 2, \"len\": 3, \"annotations\": [ { \"rend\": "
+            +"\"italic\" } ] } ] }", 8 );
+        pc.keep( "style", "{ \"format\": \"STIL\", \"ranges\": [ ], "
+            +"\"style\": \"TEI/drama\" }", "TEI/drama", "STIL" );
+        pc.reject( "truncated", "{ \"ranges\": [ { \"name\": \"p\", "
+            +"\"reloff\": 0, \"len\": 5 }, { \"name\": \"hi\", "
+            +"\"reloff\": 2, \"len\": 3 }, { \"name\": \"l\", \"rel" );
+        pc.reject( "missing colon", "{ \"ranges\" [ { \"name\": \"p\", "
+            +"\"reloff\": 0, \"len\": 5 } ] }" );
+        pc.reject( "no document", "[ ]" );
+        pc.rejectTable( "negative reloff", "{ \"ranges\": [ { \"name\": "
+            +"\"p\", \"reloff\": 10, \"len\": 5 }, { \"name\": \"hi\", "
+            +"\"reloff\": -4, \"len\": 3 } ] }" );
+        System.out.println( (pc.failures==0)?"all checks passed"
+            :pc.failures+" checks failed" );
+    }
+}
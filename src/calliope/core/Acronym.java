@@ -20,7 +20,6 @@ import calliope.core.database.Connector;
 import calliope.core.database.Connection;
 import calliope.core.exception.DbException;
 import calliope.core.constants.Database;
-import org.json.simple.JSONValue;
 import org.json.simple.JSONObject;
 import org.json.simple.JSONArray;
 import java.util.HashSet;
@@ -54,10 +53,10 @@ public class Acronym {
                 if ( !loaded.contains(projid) )
                 {
                     Connection conn = Connector.getConnection();
-                    String jStr = conn.getFromDb(Database.ACRONYMS, projid );
-                    if ( jStr != null )
+                    JSONObject jObj = conn.getObjectFromDb(
+                        Database.ACRONYMS, projid );
+                    if ( jObj != null )
                     {
-                        JSONObject jObj = (JSONObject)JSONValue.parse(jStr);
                         JSONArray jArr = (JSONArray)jObj.get("acronyms");
                         for ( int i=0;i<jArr.size();i++ )
                         {
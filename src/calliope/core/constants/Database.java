@@ -51,4 +51,17 @@ public class Database
     public static String GENEALOGY = "genealogy";
     public static String PEOPLE = "people";
     public static String ACRONYMS = "acronyms";
+    /** results computed from MVDs, e.g. diff matrices */
+    public static String DERIVED = "derived";
+    /**
+     * Get the names of all the standard collections
+     * @return an array of collection names
+     */
+    public static String[] all()
+    {
+        String[] names = {CORTEX,CORCODE,CORFORM,CORPIX,CONFIG,PARATEXT,
+            MISC,DIALECTS,PROJECTS,EVENTS,METADATA,ANNOTATIONS,TILT,SCRATCH,
+            WORKS,INDICES,RATINGS,GENEALOGY,PEOPLE,ACRONYMS,DERIVED};
+        return names;
+    }
 }
@@ -23,6 +23,8 @@ public class JSONKeys
 {
     /** JSON document key for body */
     public static String BODY = "body";
+    /** name of the GridFS file holding a body too large for its document */
+    public static String BODY_FILE = "body_file";
     /** JSON document key for style */
     public static String STYLE = "style";
     /** JSON document key for name */
@@ -0,0 +1,113 @@
+/* This file is part of calliope.
+ *
+ *  calliope is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  calliope is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with calliope.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package calliope.core.database;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The write safety and read source used for each collection, unless 
+ * overridden in a particular call. A policy never changes once made: 
+ * withWriteSafety and withReadSource return a new one, which must be 
+ * handed to Connection.setPolicy to take effect.
+ * @author desmond
+ */
+public final class AccessPolicy
+{
+    final WriteSafety defaultWrite;
+    final ReadSource defaultRead;
+    final Map<String,WriteSafety> writes;
+    final Map<String,ReadSource> reads;
+    /**
+     * Create a policy of acknowledged writes and reads from the primary
+     */
+    public AccessPolicy()
+    {
+        this( WriteSafety.ACKNOWLEDGED, ReadSource.PRIMARY );
+    }
+    /**
+     * Create a policy with the given defaults for all collections
+     * @param write the default write safety
+     * @param read the default read source
+     */
+    public AccessPolicy( WriteSafety write, ReadSource read )
+    {
+        this( write, read, new HashMap<String,WriteSafety>(), 
+            new HashMap<String,ReadSource>() );
+    }
+    /**
+     * Create a policy from its settings
+     * @param write the default write safety
+     * @param read the default read source
+     * @param writes the write safety of each collection, not shared
+     * @param reads the read source of each collection, not shared
+     */
+    private AccessPolicy( WriteSafety write, ReadSource read, 
+        HashMap<String,WriteSafety> writes, HashMap<String,ReadSource> reads )
+    {
+        this.defaultWrite = write;
+        this.defaultRead = read;
+        this.writes = Collections.unmodifiableMap( writes );
+        this.reads = Collections.unmodifiableMap( reads );
+    }
+    /**
+     * Make a copy of this policy with the write safety of one collection set
+     * @param coll the collection name, e.g. Database.CORTEX
+     * @param write its write safety
+     * @return the new policy
+     */
+    public AccessPolicy withWriteSafety( String coll, WriteSafety write )
+    {
+        HashMap<String,WriteSafety> w = new HashMap<String,WriteSafety>(writes);
+        w.put( coll, write );
+        return new AccessPolicy( defaultWrite, defaultRead, w, 
+            new HashMap<String,ReadSource>(reads) );
+    }
+    /**
+     * Make a copy of this policy with the read source of one collection set
+     * @param coll the collection name, e.g. Database.CORTEX
+     * @param read its read source
+     * @return the new policy
+     */
+    public AccessPolicy withReadSource( String coll, ReadSource read )
+    {
+        HashMap<String,ReadSource> r = new HashMap<String,ReadSource>(reads);
+        r.put( coll, read );
+        return new AccessPolicy( defaultWrite, defaultRead, 
+            new HashMap<String,WriteSafety>(writes), r );
+    }
+    /**
+     * Get the write safety for a collection
+     * @param coll the collection name
+     * @return its own write safety or the default
+     */
+    public WriteSafety getWriteSafety( String coll )
+    {
+        WriteSafety write = writes.get( coll );
+        return (write != null)?write:defaultWrite;
+    }
+    /**
+     * Get the read source for a collection
+     * @param coll the collection name
+     * @return its own read source or the default
+     */
+    public ReadSource getReadSource( String coll )
+    {
+        ReadSource read = reads.get( coll );
+        return (read != null)?read:defaultRead;
+    }
+}
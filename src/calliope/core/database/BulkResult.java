@@ -0,0 +1,97 @@
+/* This file is part of calliope.
+ *
+ *  calliope is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  calliope is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with calliope.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package calliope.core.database;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.json.simple.JSONObject;
+
+/**
+ * The outcome of a batch write, one status per docid
+ * @author desmond
+ */
+public class BulkResult
+{
+    /** status of an item that was written or removed */
+    public static String OK = "ok";
+    /** status of an item that was not there to remove */
+    public static String NOT_FOUND = "not found";
+    LinkedHashMap<String,String> items;
+    int succeeded;
+    public BulkResult()
+    {
+        this.items = new LinkedHashMap<String,String>();
+    }
+    /**
+     * Record the outcome for one item
+     * @param docid the item's docid
+     * @param status OK or a description of what went wrong
+     */
+    public void add( String docid, String status )
+    {
+        String old = items.put( docid, status );
+        if ( old != null && old.equals(OK) )
+            succeeded--;
+        if ( status.equals(OK) )
+            succeeded++;
+    }
+    /**
+     * Get the status of one item
+     * @param docid the item's docid
+     * @return its status or null if it was not in the batch
+     */
+    public String getStatus( String docid )
+    {
+        return items.get( docid );
+    }
+    /**
+     * Get the status of every item in the order they were submitted
+     * @return a map of docid to status
+     */
+    public Map<String,String> getItems()
+    {
+        return items;
+    }
+    /**
+     * How many items succeeded?
+     * @return the number whose status is OK
+     */
+    public int numSucceeded()
+    {
+        return succeeded;
+    }
+    /**
+     * How many items failed?
+     * @return the number whose status is not OK
+     */
+    public int numFailed()
+    {
+        return items.size()-succeeded;
+    }
+    /**
+     * Summarise the result as JSON
+     * @return a JSON object with counts and the status of each item
+     */
+    @Override
+    public String toString()
+    {
+        LinkedHashMap<String,Object> jObj = new LinkedHashMap<String,Object>();
+        jObj.put( "succeeded", succeeded );
+        jObj.put( "failed", numFailed() );
+        jObj.put( "items", items );
+        return JSONObject.toJSONString( jObj );
+    }
+}
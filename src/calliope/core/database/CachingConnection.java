@@ -0,0 +1,853 @@
+/* This file is part of calliope.
+ *
+ *  calliope is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  calliope is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with calliope.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package calliope.core.database;
+
+import calliope.core.constants.JSONKeys;
+import calliope.core.exception.DbException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * A read-through cache in front of another Connection. Documents fetched
+ * by getFromDb, getFromDbByField and their getObject forms are kept in
+ * least-recently-used order up to a total size and for a limited time.
+ * Writes made through this connection drop the cached copies they affect;
+ * writes made some other way are only seen once the cached copy expires.
+ * Objects are cached parsed, apart from the strings, and each read gets 
+ * its own copy.
+ * Documents with binary bodies are not cached by the getObject forms.
+ * @author desmond
+ */
+public class CachingConnection extends Connection
+{
+    /** approximate heap cost of an entry besides its text */
+    static int ENTRY_OVERHEAD = 128;
+    Connection delegate;
+    long maxBytes;
+    long ttl;
+    long usedBytes;
+    /** bumped by every invalidation, guarded by this */
+    long generation;
+    /** cached documents in access order, guarded by this */
+    LinkedHashMap<String,Entry> entries;
+    AtomicLong hits;
+    AtomicLong misses;
+    AtomicLong evictions;
+    /**
+     * A cached document
+     */
+    static class Entry
+    {
+        String coll;
+        String field;
+        String json;
+        JSONObject obj;
+        long expires;
+        long size;
+        Entry( String coll, String field, String json, long expires )
+        {
+            this.coll = coll;
+            this.field = field;
+            this.json = json;
+            this.expires = expires;
+            this.size = ENTRY_OVERHEAD+2L*json.length();
+        }
+        /**
+         * A parsed document
+         * @param length the length of its JSON form, to estimate its size
+         */
+        Entry( String coll, String field, JSONObject obj, int length, 
+            long expires )
+        {
+            this.coll = coll;
+            this.field = field;
+            this.obj = obj;
+            this.expires = expires;
+            // parsed maps take several times the room of their text
+            this.size = ENTRY_OVERHEAD+6L*length;
+        }
+    }
+    /**
+     * Put a cache in front of a connection
+     * @param delegate the connection that really fetches documents
+     * @param maxBytes the approximate maximum heap used by cached documents
+     * @param ttl milliseconds before a cached document is refetched
+     */
+    public CachingConnection( Connection delegate, long maxBytes, long ttl )
+    {
+        super( delegate.user, delegate.password, delegate.host,
+            delegate.databaseName, delegate.dbPort, delegate.wsPort,
+            delegate.webRoot );
+        this.delegate = delegate;
+        this.maxBytes = maxBytes;
+        this.ttl = ttl;
+        this.batchSize = delegate.batchSize;
+        this.policy = delegate.policy;
+        this.entries = new LinkedHashMap<String,Entry>( 16, 0.75f, true );
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+        this.evictions = new AtomicLong();
+    }
+    /**
+     * Get the connection this cache reads through to
+     * @return the uncached connection
+     */
+    public Connection getDelegate()
+    {
+        return delegate;
+    }
+    /**
+     * How many reads were answered from the cache?
+     * @return the number of hits
+     */
+    public long getHits()
+    {
+        return hits.get();
+    }
+    /**
+     * How many reads had to go to the database?
+     * @return the number of misses
+     */
+    public long getMisses()
+    {
+        return misses.get();
+    }
+    /**
+     * How many documents were dropped to make room or because they expired?
+     * @return the number of evictions
+     */
+    public long getEvictions()
+    {
+        return evictions.get();
+    }
+    /**
+     * Get the approximate heap used by cached documents
+     * @return the size in bytes
+     */
+    public synchronized long getUsedBytes()
+    {
+        return usedBytes;
+    }
+    /**
+     * Summarise the cache's counters
+     * @return a JSON object as a string
+     */
+    public String getStats()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"hits\":");
+        sb.append(getHits());
+        sb.append(",\"misses\":");
+        sb.append(getMisses());
+        sb.append(",\"evictions\":");
+        sb.append(getEvictions());
+        sb.append(",\"bytes\":");
+        sb.append(getUsedBytes());
+        sb.append("}");
+        return sb.toString();
+    }
+    static String makeKey( String coll, String field, String value )
+    {
+        return coll+"\u0000"+field+"\u0000"+value;
+    }
+    /**
+     * Parsed documents are kept apart from the strings of the same 
+     * documents, which may have been fetched differently
+     */
+    static String makeObjectKey( String coll, String field, String value )
+    {
+        return makeKey( coll, field, value )+"\u0000object";
+    }
+    /**
+     * Copy a parsed document so callers may change it freely
+     * @param value a JSONObject, JSONArray or immutable value
+     * @return its copy
+     */
+    @SuppressWarnings("unchecked")
+    static Object copy( Object value )
+    {
+        if ( value instanceof Map )
+        {
+            JSONObject jObj = new JSONObject();
+            for ( Object o : ((Map<?,?>)value).entrySet() )
+            {
+                Map.Entry<?,?> me = (Map.Entry<?,?>)o;
+                jObj.put( me.getKey(), copy(me.getValue()) );
+            }
+            return jObj;
+        }
+        else if ( value instanceof List )
+        {
+            JSONArray jArr = new JSONArray();
+            for ( Object o : (List<?>)value )
+                jArr.add( copy(o) );
+            return jArr;
+        }
+        else
+            return value;
+    }
+    /**
+     * Get the current invalidation count, to be checked when storing
+     * @return the generation
+     */
+    synchronized long getGeneration()
+    {
+        return generation;
+    }
+    /**
+     * Look up a cached document
+     * @param key the cache key
+     * @return the document or null if absent or expired
+     */
+    synchronized String lookup( String key )
+    {
+        Entry e = lookupEntry( key );
+        return (e==null)?null:e.json;
+    }
+    /**
+     * Look up a cached parsed document
+     * @param key the cache key from makeObjectKey
+     * @return the shared document, to be copied, or null
+     */
+    synchronized JSONObject lookupObject( String key )
+    {
+        Entry e = lookupEntry( key );
+        return (e==null)?null:e.obj;
+    }
+    private Entry lookupEntry( String key )
+    {
+        Entry e = entries.get( key );
+        if ( e != null )
+        {
+            if ( e.expires > System.currentTimeMillis() )
+                return e;
+            entries.remove( key );
+            usedBytes -= e.size;
+            evictions.incrementAndGet();
+        }
+        return null;
+    }
+    /**
+     * Cache a document, evicting the least recently used to make room
+     * @param key the cache key
+     * @param coll its collection
+     * @param field the field it was looked up by
+     * @param json the document
+     * @param gen the generation when the fetch began
+     */
+    synchronized void store( String key, String coll, String field,
+        String json, long gen )
+    {
+        store( key, new Entry(coll, field, json,
+            System.currentTimeMillis()+ttl), gen );
+    }
+    /**
+     * Cache a parsed document, which must not be changed afterwards
+     * @param key the cache key from makeObjectKey
+     * @param coll its collection
+     * @param field the field it was looked up by
+     * @param jObj the document
+     * @param gen the generation when the fetch began
+     */
+    synchronized void storeObject( String key, String coll, String field,
+        JSONObject jObj, long gen )
+    {
+        store( key, new Entry(coll, field, jObj, 
+            jObj.toJSONString().length(), System.currentTimeMillis()+ttl),
+            gen );
+    }
+    private void store( String key, Entry e, long gen )
+    {
+        // a write since the fetch began may have made it stale
+        if ( gen == generation && e.size <= maxBytes )
+        {
+            Entry old = entries.put( key, e );
+            if ( old != null )
+                usedBytes -= old.size;
+            usedBytes += e.size;
+            Iterator<Entry> iter = entries.values().iterator();
+            while ( usedBytes > maxBytes && iter.hasNext() )
+            {
+                Entry victim = iter.next();
+                iter.remove();
+                usedBytes -= victim.size;
+                evictions.incrementAndGet();
+            }
+        }
+    }
+    /**
+     * Drop the cached copies of a document. Entries fetched by some other
+     * field of the same collection might be the same document, so they go
+     * too.
+     * @param coll the collection
+     * @param docid the document's docid
+     */
+    void invalidate( String coll, String docid )
+    {
+        invalidate( coll, Collections.singleton(docid) );
+    }
+    /**
+     * Drop the cached copies of several documents of a collection, and 
+     * any entries fetched from it by some other field
+     * @param coll the collection
+     * @param docids the documents' docids
+     */
+    synchronized void invalidate( String coll, Collection<String> docids )
+    {
+        generation++;
+        for ( String docid : docids )
+        {
+            Entry e = entries.remove( makeKey(coll,JSONKeys.DOCID,docid) );
+            if ( e != null )
+                usedBytes -= e.size;
+            e = entries.remove( makeObjectKey(coll,JSONKeys.DOCID,docid) );
+            if ( e != null )
+                usedBytes -= e.size;
+        }
+        Iterator<Entry> iter = entries.values().iterator();
+        while ( iter.hasNext() )
+        {
+            Entry e = iter.next();
+            if ( e.coll.equals(coll) && !e.field.equals(JSONKeys.DOCID) )
+            {
+                iter.remove();
+                usedBytes -= e.size;
+            }
+        }
+    }
+    /**
+     * Drop every cached document of a collection
+     * @param coll the collection
+     */
+    synchronized void invalidateAll( String coll )
+    {
+        generation++;
+        Iterator<Entry> iter = entries.values().iterator();
+        while ( iter.hasNext() )
+        {
+            Entry e = iter.next();
+            if ( e.coll.equals(coll) )
+            {
+                iter.remove();
+                usedBytes -= e.size;
+            }
+        }
+    }
+    /**
+     * Drop every cached document
+     */
+    public synchronized void clear()
+    {
+        generation++;
+        entries.clear();
+        usedBytes = 0;
+    }
+    @Override
+    public void setBatchSize( int batchSize )
+    {
+        super.setBatchSize( batchSize );
+        delegate.setBatchSize( batchSize );
+    }
+    @Override
+    public void addListener( DocumentListener listener )
+    {
+        delegate.addListener( listener );
+    }
+    @Override
+    public void removeListener( DocumentListener listener )
+    {
+        delegate.removeListener( listener );
+    }
+    @Override
+    public void setPolicy( AccessPolicy policy )
+    {
+        super.setPolicy( policy );
+        delegate.setPolicy( policy );
+    }
+    @Override
+    public String getFromDbByField( String coll, String value, String field )
+        throws DbException
+    {
+        String key = makeKey( coll, field, value );
+        String json = lookup( key );
+        if ( json != null )
+        {
+            hits.incrementAndGet();
+            return json;
+        }
+        misses.incrementAndGet();
+        long gen = getGeneration();
+        json = delegate.getFromDbByField( coll, value, field );
+        if ( json != null )
+            store( key, coll, field, json, gen );
+        return json;
+    }
+    @Override
+    public String getFromDb( String coll, String docID ) throws DbException
+    {
+        return getFromDbByField( coll, docID, JSONKeys.DOCID );
+    }
+    @Override
+    public JSONObject getObjectFromDbByField( String coll, String value, 
+        String field ) throws DbException
+    {
+        String key = makeObjectKey( coll, field, value );
+        JSONObject cached = lookupObject( key );
+        if ( cached != null )
+        {
+            hits.incrementAndGet();
+            return (JSONObject)copy( cached );
+        }
+        misses.incrementAndGet();
+        long gen = getGeneration();
+        JSONObject jObj = delegate.getObjectFromDbByField( coll, value, field );
+        // a binary body has no JSON form to measure or copy
+        if ( jObj != null && !(jObj.get(JSONKeys.BODY) instanceof byte[]) )
+        {
+            storeObject( key, coll, field, jObj, gen );
+            return (JSONObject)copy( jObj );
+        }
+        return jObj;
+    }
+    @Override
+    public JSONObject getObjectFromDb( String coll, String docID )
+        throws DbException
+    {
+        return getObjectFromDbByField( coll, docID, JSONKeys.DOCID );
+    }
+    @Override
+    public JSONObject getObjectFromDb( String coll, String docID, 
+        String... fields ) throws DbException
+    {
+        // answer from a cached whole document, but don't cache parts
+        JSONObject whole = lookupObject( 
+            makeObjectKey(coll,JSONKeys.DOCID,docID) );
+        if ( whole != null )
+        {
+            hits.incrementAndGet();
+            Map<String,Object> part = new HashMap<String,Object>();
+            for ( int i=0;i<fields.length;i++ )
+                if ( whole.containsKey(fields[i]) )
+                    part.put( fields[i], whole.get(fields[i]) );
+            return (JSONObject)copy( part );
+        }
+        misses.incrementAndGet();
+        return delegate.getObjectFromDb( coll, docID, fields );
+    }
+    @Override
+    public JSONObject getObjectFromDbExcept( String coll, String docID, 
+        String... fields ) throws DbException
+    {
+        // answer from a cached whole document, but don't cache parts
+        JSONObject whole = lookupObject( 
+            makeObjectKey(coll,JSONKeys.DOCID,docID) );
+        if ( whole != null )
+        {
+            hits.incrementAndGet();
+            JSONObject jObj = (JSONObject)copy( whole );
+            for ( int i=0;i<fields.length;i++ )
+                jObj.remove( fields[i] );
+            return jObj;
+        }
+        misses.incrementAndGet();
+        return delegate.getObjectFromDbExcept( coll, docID, fields );
+    }
+    @Override
+    public byte[] getBsonFromDb( String coll, String docID ) 
+        throws DbException
+    {
+        return delegate.getBsonFromDb( coll, docID );
+    }
+    @Override
+    public String getFromDb( String coll, String docID, ReadSource source )
+        throws DbException
+    {
+        // an explicit read source asks for a particular server: bypass
+        return delegate.getFromDb( coll, docID, source );
+    }
+    @Override
+    public String getFromDb( String coll, String dbase, String docID,
+        String version ) throws DbException
+    {
+        return delegate.getFromDb( coll, dbase, docID, version );
+    }
+    @Override
+    public byte[] getBodyFromDb( String coll, String docID ) 
+        throws DbException
+    {
+        return delegate.getBodyFromDb( coll, docID );
+    }
+    @Override
+    public InputStream getBodyStreamFromDb( String coll, String docID ) 
+        throws DbException
+    {
+        return delegate.getBodyStreamFromDb( coll, docID );
+    }
+    @Override
+    public String putBodyToDb( String coll, String docID, byte[] body )
+        throws DbException
+    {
+        try
+        {
+            return delegate.putBodyToDb( coll, docID, body );
+        }
+        finally
+        {
+            invalidate( coll, docID );
+        }
+    }
+    @Override
+    public String putBodyToDb( String coll, String docID, byte[] body,
+        WriteSafety safety ) throws DbException
+    {
+        try
+        {
+            return delegate.putBodyToDb( coll, docID, body, safety );
+        }
+        finally
+        {
+            invalidate( coll, docID );
+        }
+    }
+    @Override
+    public String[] listCollection( String coll ) throws DbException
+    {
+        return delegate.listCollection( coll );
+    }
+    @Override
+    public String[] listCollectionByKey( String collName, String key )
+        throws DbException
+    {
+        return delegate.listCollectionByKey( collName, key );
+    }
+    @Override
+    public String[] listDocuments( String coll, String expr, String key )
+        throws DbException
+    {
+        return delegate.listDocuments( coll, expr, key );
+    }
+    @Override
+    public String[] listDocumentsByPrefix( String coll, String prefix,
+        String key ) throws DbException
+    {
+        return delegate.listDocumentsByPrefix( coll, prefix, key );
+    }
+    @Override
+    public DbCursor<String> iterateCollection( String coll, String key )
+        throws DbException
+    {
+        return delegate.iterateCollection( coll, key );
+    }
+    @Override
+    public DbCursor<String> iterateDocuments( String coll, String expr,
+        String key ) throws DbException
+    {
+        return delegate.iterateDocuments( coll, expr, key );
+    }
+    @Override
+    public DbCursor<String> iterateDocumentsByPrefix( String coll,
+        String prefix, String key ) throws DbException
+    {
+        return delegate.iterateDocumentsByPrefix( coll, prefix, key );
+    }
+    @Override
+    public DbCursor<String> iterateAll( String coll ) throws DbException
+    {
+        return delegate.iterateAll( coll );
+    }
+    @Override
+    public String putToDb( String coll, String docID, String json )
+        throws DbException
+    {
+        try
+        {
+            return delegate.putToDb( coll, docID, json );
+        }
+        finally
+        {
+            invalidate( coll, docID );
+        }
+    }
+    @Override
+    public String putToDb( String coll, String docID, String json,
+        WriteSafety safety ) throws DbException
+    {
+        try
+        {
+            return delegate.putToDb( coll, docID, json, safety );
+        }
+        finally
+        {
+            invalidate( coll, docID );
+        }
+    }
+    @Override
+    public String putToDb( String collName, String dbase, String docid,
+        String version, String json ) throws DbException
+    {
+        try
+        {
+            return delegate.putToDb( collName, dbase, docid, version, json );
+        }
+        finally
+        {
+            invalidate( collName, docid );
+        }
+    }
+    @Override
+    public String putToDb( String collName, String dbase, String docid,
+        String version, String json, WriteSafety safety ) throws DbException
+    {
+        try
+        {
+            return delegate.putToDb( collName, dbase, docid, version, json,
+                safety );
+        }
+        finally
+        {
+            invalidate( collName, docid );
+        }
+    }
+    @Override
+    public String addToDb( String collName, String json ) throws DbException
+    {
+        try
+        {
+            return delegate.addToDb( collName, json );
+        }
+        finally
+        {
+            invalidateAll( collName );
+        }
+    }
+    @Override
+    public String addToDb( String collName, String json, WriteSafety safety )
+        throws DbException
+    {
+        try
+        {
+            return delegate.addToDb( collName, json, safety );
+        }
+        finally
+        {
+            invalidateAll( collName );
+        }
+    }
+    @Override
+    public BulkResult putManyToDb( String collName, Map<String,String> docs )
+        throws DbException
+    {
+        return putManyToDb( collName, docs, null );
+    }
+    @Override
+    public BulkResult putManyToDb( String collName, Map<String,String> docs,
+        WriteSafety safety ) throws DbException
+    {
+        try
+        {
+            return delegate.putManyToDb( collName, docs, safety );
+        }
+        finally
+        {
+            invalidate( collName, docs.keySet() );
+        }
+    }
+    @Override
+    public BulkResult removeManyFromDb( String collName,
+        Collection<String> docids ) throws DbException
+    {
+        return removeManyFromDb( collName, docids, null );
+    }
+    @Override
+    public BulkResult removeManyFromDb( String collName,
+        Collection<String> docids, WriteSafety safety ) throws DbException
+    {
+        try
+        {
+            return delegate.removeManyFromDb( collName, docids, safety );
+        }
+        finally
+        {
+            invalidate( collName, docids );
+        }
+    }
+    @Override
+    public String removeFromDb( String collName, String dbase, String docID,
+        String version ) throws DbException
+    {
+        try
+        {
+            return delegate.removeFromDb( collName, dbase, docID, version );
+        }
+        finally
+        {
+            invalidate( collName, docID );
+        }
+    }
+    @Override
+    public String removeFromDb( String collName, String dbase, String docID,
+        String version, WriteSafety safety ) throws DbException
+    {
+        try
+        {
+            return delegate.removeFromDb( collName, dbase, docID, version,
+                safety );
+        }
+        finally
+        {
+            invalidate( collName, docID );
+        }
+    }
+    @Override
+    public String removeFromDb( String coll, String docID )
+        throws DbException
+    {
+        try
+        {
+            return delegate.removeFromDb( coll, docID );
+        }
+        finally
+        {
+            invalidate( coll, docID );
+        }
+    }
+    @Override
+    public String removeFromDb( String coll, String docID,
+        WriteSafety safety ) throws DbException
+    {
+        try
+        {
+            return delegate.removeFromDb( coll, docID, safety );
+        }
+        finally
+        {
+            invalidate( coll, docID );
+        }
+    }
+    @Override
+    public String removeFromDbByField( String collName, String field,
+        String value ) throws DbException
+    {
+        try
+        {
+            return delegate.removeFromDbByField( collName, field, value );
+        }
+        finally
+        {
+            invalidateAll( collName );
+        }
+    }
+    @Override
+    public String removeFromDbByField( String collName, String field,
+        String value, WriteSafety safety ) throws DbException
+    {
+        try
+        {
+            return delegate.removeFromDbByField( collName, field, value,
+                safety );
+        }
+        finally
+        {
+            invalidateAll( collName );
+        }
+    }
+    @Override
+    public String getMetadata( String docID )
+    {
+        return delegate.getMetadata( docID );
+    }
+    @Override
+    public String removeFromDbByExpr( String coll, String field,
+        String expr ) throws DbException
+    {
+        try
+        {
+            return delegate.removeFromDbByExpr( coll, field, expr );
+        }
+        finally
+        {
+            invalidateAll( coll );
+        }
+    }
+    @Override
+    public String removeFromDbByExpr( String coll, String field,
+        String expr, WriteSafety safety ) throws DbException
+    {
+        try
+        {
+            return delegate.removeFromDbByExpr( coll, field, expr, safety );
+        }
+        finally
+        {
+            invalidateAll( coll );
+        }
+    }
+    @Override
+    public void updateByField( String coll, String findField,
+        Object findValue, String setField, Object setValue )
+        throws DbException
+    {
+        try
+        {
+            delegate.updateByField( coll, findField, findValue, setField,
+                setValue );
+        }
+        finally
+        {
+            invalidateAll( coll );
+        }
+    }
+    @Override
+    public void updateByField( String coll, String findField,
+        Object findValue, String setField, Object setValue,
+        WriteSafety safety ) throws DbException
+    {
+        try
+        {
+            delegate.updateByField( coll, findField, findValue, setField,
+                setValue, safety );
+        }
+        finally
+        {
+            invalidateAll( coll );
+        }
+    }
+    @Override
+    public void close()
+    {
+        clear();
+        delegate.close();
+    }
+    @Override
+    public double getPoolSaturation()
+    {
+        return delegate.getPoolSaturation();
+    }
+    @Override
+    public String[] getMissingIndexes()
+    {
+        return delegate.getMissingIndexes();
+    }
+}
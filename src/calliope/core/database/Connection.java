@@ -21,7 +21,12 @@ import calliope.core.image.MimeType;
 import java.awt.Rectangle;
 import calliope.core.constants.Database;
 import calliope.core.exception.DbException;
+import java.io.InputStream;
 import java.util.HashSet;
+import java.util.Map;
+import java.util.Collection;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.json.simple.JSONObject;
 /**
  * Abstract database API for various databases/repositories
  * @author desmond
@@ -35,6 +40,15 @@ public abstract class Connection
     int wsPort;
     String webRoot;
     protected String databaseName;
+    /** default number of documents fetched per round trip when listing */
+    public static int DEFAULT_BATCH_SIZE = 1000;
+    /** number of documents fetched per round trip when listing */
+    protected int batchSize = DEFAULT_BATCH_SIZE;
+    /** write safety and read source for each collection */
+    protected volatile AccessPolicy policy = new AccessPolicy();
+    /** told about every write and removal */
+    CopyOnWriteArrayList<DocumentListener> listeners = 
+        new CopyOnWriteArrayList<DocumentListener>();
     public Connection( String user, String password, String host, 
         String dbName, int dbPort, int wsPort, String webRoot )
     {
@@ -58,6 +72,64 @@ public abstract class Connection
     {
         return host;
     }
+    /**
+     * Set how many documents a listing fetches per round trip
+     * @param batchSize the number of documents per batch
+     */
+    public void setBatchSize( int batchSize )
+    {
+        this.batchSize = batchSize;
+    }
+    /**
+     * Get how many documents a listing fetches per round trip
+     * @return the number of documents per batch
+     */
+    public int getBatchSize()
+    {
+        return batchSize;
+    }
+    /**
+     * Set the write safety and read source used for each collection
+     * @param policy the new policy
+     */
+    public void setPolicy( AccessPolicy policy )
+    {
+        this.policy = policy;
+    }
+    /**
+     * Get the write safety and read source used for each collection
+     * @return the current policy
+     */
+    public AccessPolicy getPolicy()
+    {
+        return policy;
+    }
+    /**
+     * Be told about documents written or removed through this connection
+     * @param listener the object to notify
+     */
+    public void addListener( DocumentListener listener )
+    {
+        listeners.addIfAbsent( listener );
+    }
+    /**
+     * Stop telling a listener about changed documents
+     * @param listener the object no longer to notify
+     */
+    public void removeListener( DocumentListener listener )
+    {
+        listeners.remove( listener );
+    }
+    /**
+     * Tell the listeners that a document was written or removed
+     * @param coll the collection it is in
+     * @param docid its docid or null if any document in coll may have changed
+     */
+    protected void fireChanged( String coll, String docid )
+    {
+        for ( DocumentListener listener : listeners )
+            listener.documentChanged( coll, docid );
+    }
     /**
      * Remove the rightmost segment of the path and resource
      * @return the remains of the path
@@ -76,26 +148,326 @@ public abstract class Connection
         throws DbException;
     public abstract String[] listDocuments( String coll, String expr, String key )
         throws DbException;
+    /**
+     * List the documents whose docids start with a literal prefix
+     * @param coll the collection to search
+     * @param prefix the docid prefix (not a regular expression)
+     * @param key the key to retrieve for each matching document
+     * @return an array of key values, which may be empty
+     * @throws DbException 
+     */
+    public abstract String[] listDocumentsByPrefix( String coll, 
+        String prefix, String key ) throws DbException;
+    /**
+     * Iterate over one key of every document in a collection
+     * @param coll the collection to read
+     * @param key the key to retrieve for each document
+     * @return a cursor that must be closed after use
+     * @throws DbException 
+     */
+    public abstract DbCursor<String> iterateCollection( String coll, 
+        String key ) throws DbException;
+    /**
+     * Iterate over one key of each document whose docid matches a regex
+     * @param coll the collection to query
+     * @param expr the regular expression to match against docid
+     * @param key the key to retrieve for each matching document
+     * @return a cursor that must be closed after use
+     * @throws DbException 
+     */
+    public abstract DbCursor<String> iterateDocuments( String coll, 
+        String expr, String key ) throws DbException;
+    /**
+     * Iterate over one key of each document whose docid has a prefix
+     * @param coll the collection to query
+     * @param prefix the docid prefix (not a regular expression)
+     * @param key the key to retrieve for each matching document
+     * @return a cursor that must be closed after use
+     * @throws DbException 
+     */
+    public abstract DbCursor<String> iterateDocumentsByPrefix( String coll, 
+        String prefix, String key ) throws DbException;
+    /**
+     * Iterate over the whole of every document in a collection
+     * @param coll the collection to read
+     * @return a cursor over JSON documents that must be closed after use
+     * @throws DbException 
+     */
+    public abstract DbCursor<String> iterateAll( String coll ) 
+        throws DbException;
     public abstract String getFromDb( String coll, String docID ) 
         throws DbException;
+    /**
+     * Fetch a document overriding the collection's read source
+     * @param coll the collection to read
+     * @param docID the document's docid
+     * @param source where to read from or null for the policy's choice
+     * @return the document as JSON or null if not found
+     * @throws DbException 
+     */
+    public abstract String getFromDb( String coll, String docID, 
+        ReadSource source ) throws DbException;
     public abstract String getFromDb( String coll, String dbase, String docID, String version )
         throws DbException;
     public abstract String getFromDbByField( String coll, String value, String field ) 
         throws DbException;
+    /**
+     * Fetch a document already parsed, saving the caller from parsing 
+     * the JSON string getFromDb returns. A binary body is a byte array, 
+     * as stored, not base64 text.
+     * @param coll the collection to read
+     * @param docID the document's docid
+     * @return the document or null if not found
+     * @throws DbException 
+     */
+    public abstract JSONObject getObjectFromDb( String coll, String docID ) 
+        throws DbException;
+    /**
+     * Fetch only some fields of a document, so that large fields such as 
+     * the body need not be read when they are not wanted
+     * @param coll the collection to read
+     * @param docID the document's docid
+     * @param fields the names of the fields to fetch
+     * @return the requested fields that the document has, or null if the 
+     * document was not found
+     * @throws DbException 
+     */
+    public abstract JSONObject getObjectFromDb( String coll, String docID, 
+        String... fields ) throws DbException;
+    /**
+     * Fetch all but some fields of a document, so that the rest need not 
+     * be listed by the caller
+     * @param coll the collection to read
+     * @param docID the document's docid
+     * @param fields the names of the fields to leave out, e.g. the body
+     * @return the other fields of the document, or null if not found
+     * @throws DbException 
+     */
+    public abstract JSONObject getObjectFromDbExcept( String coll, 
+        String docID, String... fields ) throws DbException;
+    /**
+     * Fetch a document already parsed via a given field value
+     * @param coll the collection to read
+     * @param value the value of the field
+     * @param field the field name
+     * @return the document or null if not found
+     * @throws DbException 
+     */
+    public abstract JSONObject getObjectFromDbByField( String coll, 
+        String value, String field ) throws DbException;
+    /**
+     * Fetch a document in the database's own binary form
+     * @param coll the collection to read
+     * @param docID the document's docid
+     * @return the document as BSON or null if not found
+     * @throws DbException 
+     */
+    public abstract byte[] getBsonFromDb( String coll, String docID ) 
+        throws DbException;
     public abstract String putToDb( String coll, String docID, String json ) 
         throws DbException;
+    /**
+     * Write a document overriding the collection's write safety
+     * @param coll the collection to write to
+     * @param docID the document's docid
+     * @param json the document
+     * @param safety how safe the write must be or null for the policy's
+     * @return the server response
+     * @throws DbException 
+     */
+    public abstract String putToDb( String coll, String docID, String json,
+        WriteSafety safety ) throws DbException;
     public abstract String putToDb( String collName, String dbase, 
         String docid, String version, String json ) throws DbException;
+    /**
+     * Write a version of a document overriding the collection's write safety
+     * @param collName the collection to write to
+     * @param dbase the database name
+     * @param docid the document's docid
+     * @param version the version of the document
+     * @param json the document
+     * @param safety how safe the write must be or null for the policy's
+     * @return the server response
+     * @throws DbException 
+     */
+    public abstract String putToDb( String collName, String dbase, 
+        String docid, String version, String json, WriteSafety safety ) 
+        throws DbException;
+    /**
+     * Store a document's body in binary form, creating the document if 
+     * needed. Large bodies may be kept outside the document itself.
+     * @param coll the collection to write to
+     * @param docID the document's docid
+     * @param body the raw body, e.g. a gzipped binary MVD
+     * @return the server response
+     * @throws DbException 
+     */
+    public abstract String putBodyToDb( String coll, String docID, 
+        byte[] body ) throws DbException;
+    /**
+     * Store a document's body in binary form overriding the write safety
+     * @param coll the collection to write to
+     * @param docID the document's docid
+     * @param body the raw body, e.g. a gzipped binary MVD
+     * @param safety how safe the write must be or null for the policy's
+     * @return the server response
+     * @throws DbException 
+     */
+    public abstract String putBodyToDb( String coll, String docID, 
+        byte[] body, WriteSafety safety ) throws DbException;
+    /**
+     * Fetch just the body of a document as bytes, without the rest of 
+     * the document or any conversion to JSON. Legacy text bodies are 
+     * base64-decoded.
+     * @param coll the collection to read
+     * @param docID the document's docid
+     * @return the body, possibly gzipped, or null if not found
+     * @throws DbException 
+     */
+    public abstract byte[] getBodyFromDb( String coll, String docID ) 
+        throws DbException;
+    /**
+     * Open the body of a document as a stream of bytes, so that a caller 
+     * who reads only its start need not fetch all of a large body
+     * @param coll the collection to read
+     * @param docID the document's docid
+     * @return the body, possibly gzipped, or null if not found. It must 
+     * be closed after use.
+     * @throws DbException 
+     */
+    public abstract InputStream getBodyStreamFromDb( String coll, 
+        String docID ) throws DbException;
     public abstract String addToDb( String collName, String json ) throws DbException;
+    /**
+     * Add a new document overriding the collection's write safety
+     * @param collName the collection to write to
+     * @param json the document
+     * @param safety how safe the write must be or null for the policy's
+     * @return the server response
+     * @throws DbException 
+     */
+    public abstract String addToDb( String collName, String json, 
+        WriteSafety safety ) throws DbException;
+    /**
+     * Write many documents in batches, replacing those with the same docids
+     * @param collName the collection to write to
+     * @param docs a map of docids to JSON documents
+     * @return the outcome for each docid
+     * @throws DbException 
+     */
+    public abstract BulkResult putManyToDb( String collName, 
+        Map<String,String> docs ) throws DbException;
+    /**
+     * Write many documents overriding the collection's write safety
+     * @param collName the collection to write to
+     * @param docs a map of docids to JSON documents
+     * @param safety how safe the writes must be or null for the policy's
+     * @return the outcome for each docid
+     * @throws DbException 
+     */
+    public abstract BulkResult putManyToDb( String collName, 
+        Map<String,String> docs, WriteSafety safety ) throws DbException;
+    /**
+     * Remove many documents by docid in batches
+     * @param collName the collection to remove from
+     * @param docids the docids to remove
+     * @return the outcome for each docid
+     * @throws DbException 
+     */
+    public abstract BulkResult removeManyFromDb( String collName, 
+        Collection<String> docids ) throws DbException;
+    /**
+     * Remove many documents overriding the collection's write safety
+     * @param collName the collection to remove from
+     * @param docids the docids to remove
+     * @param safety how safe the removal must be or null for the policy's
+     * @return the outcome for each docid
+     * @throws DbException 
+     */
+    public abstract BulkResult removeManyFromDb( String collName, 
+        Collection<String> docids, WriteSafety safety ) throws DbException;
     public abstract String removeFromDb( String collName, String dbase, String docID, 
         String version ) throws DbException;
+    /**
+     * Remove a version of a document overriding the collection's write safety
+     * @param collName the collection to remove from
+     * @param dbase the database name
+     * @param docID the document's docid
+     * @param version the version of the document
+     * @param safety how safe the removal must be or null for the policy's
+     * @return the server response
+     * @throws DbException 
+     */
+    public abstract String removeFromDb( String collName, String dbase, 
+        String docID, String version, WriteSafety safety ) throws DbException;
     public abstract String removeFromDb( String coll, String docID ) 
         throws DbException;
+    /**
+     * Remove a document overriding the collection's write safety
+     * @param coll the collection to remove from
+     * @param docID the document's docid
+     * @param safety how safe the removal must be or null for the policy's
+     * @return the server response
+     * @throws DbException 
+     */
+    public abstract String removeFromDb( String coll, String docID, 
+        WriteSafety safety ) throws DbException;
     public abstract String removeFromDbByField( String collName, String field, 
         String value ) throws DbException;
+    /**
+     * Remove documents by a field value overriding the write safety
+     * @param collName the collection to remove from
+     * @param field the name of the field
+     * @param value the value of the field
+     * @param safety how safe the removal must be or null for the policy's
+     * @return the server response
+     * @throws DbException 
+     */
+    public abstract String removeFromDbByField( String collName, String field, 
+        String value, WriteSafety safety ) throws DbException;
     public abstract String getMetadata( String docID );
     public abstract String removeFromDbByExpr( String coll, String field, 
         String expr ) throws DbException;
+    /**
+     * Remove documents whose field matches a regular expression, 
+     * overriding the write safety
+     * @param coll the collection to remove from
+     * @param field the name of the field
+     * @param expr the regular expression for its values
+     * @param safety how safe the removal must be or null for the policy's
+     * @return the server response
+     * @throws DbException 
+     */
+    public abstract String removeFromDbByExpr( String coll, String field, 
+        String expr, WriteSafety safety ) throws DbException;
     public abstract void  updateByField( String coll, String findField, 
         Object findValue, String setField, Object setValue ) throws DbException;
+    /**
+     * Update one field of a document overriding the write safety
+     * @param coll the collection the document is in
+     * @param findField the field to look for
+     * @param findValue the field value to search for
+     * @param setField the field to set
+     * @param setValue the new field value
+     * @param safety how safe the write must be or null for the policy's
+     * @throws DbException 
+     */
+    public abstract void updateByField( String coll, String findField, 
+        Object findValue, String setField, Object setValue, 
+        WriteSafety safety ) throws DbException;
+    /**
+     * Release all the resources held by this connection
+     */
+    public abstract void close();
+    /**
+     * How close is the pool of database sockets to being exhausted?
+     * @return the fraction of the pool in use, from 0.0 to 1.0
+     */
+    public abstract double getPoolSaturation();
+    /**
+     * Report the indexes that were missing when the database was opened. 
+     * They have since been requested, but may still be building.
+     * @return an array of "collection:key1,key2" descriptions
+     */
+    public abstract String[] getMissingIndexes();
 }
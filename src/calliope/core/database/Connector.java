@@ -19,6 +19,7 @@ package calliope.core.database;
 
 
 import calliope.core.exception.DbException;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Handle connections with a database
@@ -26,7 +27,10 @@ import calliope.core.exception.DbException;
  */
 public class Connector 
 {
-    static Connection connection = null;
+    static volatile Connection connection = null;
+    /** listeners that survive re-initialisation of the connection */
+    static CopyOnWriteArrayList<DocumentListener> listeners = 
+        new CopyOnWriteArrayList<DocumentListener>();
     /**
      * Initialise once per instantiation
      * @param repository the repository type
@@ -43,16 +47,103 @@ public class Connector
         String password, String host, String dbName, int dbPort, 
         int wsPort, String webRoot ) throws DbException
     {
+        init( repository, user, password, host, dbName, dbPort, wsPort, 
+            webRoot, new PoolConfig() );
+    }
+    /**
+     * Initialise once per instantiation with explicit pool limits
+     * @param repository the repository type
+     * @param user the user name
+     * @param password the user's password
+     * @param host the domain name of the host
+     * @param dbName the name of the database
+     * @param dbPort the database port
+     * @param wsPort the web-service port
+     * @param webRoot the full path to the web-root
+     * @param pool the limits on the database socket pool
+     * @throws DbException 
+     */
+    public static void init( Repository repository, String user, 
+        String password, String host, String dbName, int dbPort, 
+        int wsPort, String webRoot, PoolConfig pool ) throws DbException
+    {
+        init( repository, user, password, host, dbName, dbPort, wsPort, 
+            webRoot, pool, new AccessPolicy() );
+    }
+    /**
+     * Initialise once per instantiation with pool limits and access policy
+     * @param repository the repository type
+     * @param user the user name
+     * @param password the user's password
+     * @param host the domain name of the host
+     * @param dbName the name of the database
+     * @param dbPort the database port
+     * @param wsPort the web-service port
+     * @param webRoot the full path to the web-root
+     * @param pool the limits on the database socket pool
+     * @param policy the write safety and read source for each collection
+     * @throws DbException 
+     */
+    public static synchronized void init( Repository repository, String user, 
+        String password, String host, String dbName, int dbPort, 
+        int wsPort, String webRoot, PoolConfig pool, AccessPolicy policy ) 
+        throws DbException
+    {
+        Connection conn;
         switch ( repository )
         {
             case MONGO:
-                connection = new MongoConnection(
-                    user,password,host, dbName, dbPort, wsPort, webRoot );
+                conn = new MongoConnection(
+                    user,password,host, dbName, dbPort, wsPort, webRoot, 
+                    pool );
                 break;
             default:
                 throw new DbException( "Unknown repository type "
                     +repository );
         }
+        // configure it fully before anyone else can see it
+        conn.setPolicy( policy );
+        for ( DocumentListener listener : listeners )
+            conn.addListener( listener );
+        Connection old = connection;
+        connection = conn;
+        // callers still using the old one get a DbException, not an NPE
+        if ( old != null )
+            old.close();
+    }
+    /**
+     * Put a read-through document cache in front of the connection
+     * @param maxBytes the approximate maximum heap for cached documents
+     * @param ttl milliseconds before a cached document is refetched
+     * @throws DbException if there is no connection yet
+     */
+    public static synchronized void enableCache( long maxBytes, long ttl ) 
+        throws DbException
+    {
+        Connection conn = getConnection();
+        if ( conn instanceof CachingConnection )
+            conn = ((CachingConnection)conn).getDelegate();
+        connection = new CachingConnection( conn, maxBytes, ttl );
+    }
+    /**
+     * Be told about documents changed through this and future connections
+     * @param listener the object to notify
+     */
+    public static synchronized void addListener( DocumentListener listener )
+    {
+        if ( listeners.addIfAbsent(listener) && connection != null )
+            connection.addListener( listener );
+    }
+    /**
+     * Close the connection and release its sockets
+     */
+    public static synchronized void close()
+    {
+        if ( connection != null )
+        {
+            connection.close();
+            connection = null;
+        }
     }
     /**
      * Get the connection object
@@ -60,9 +151,21 @@ public class Connector
      */
     public static Connection getConnection() throws DbException
     {
-        if ( connection == null )
+        Connection conn = connection;
+        if ( conn == null )
             throw new DbException( "connection to database was null" );
-        return connection;
+        return conn;
+    }
+    /**
+     * Is the database socket pool nearly exhausted? Callers can use this 
+     * to turn away work during a spike instead of queuing for sockets.
+     * @param threshold the fraction of the pool (0.0-1.0) deemed full
+     * @return true if at least that fraction of the pool is in use
+     */
+    public static boolean isSaturated( double threshold )
+    {
+        Connection conn = connection;
+        return conn != null && conn.getPoolSaturation() >= threshold;
     }
     /**
      * Is the connection open?
@@ -78,9 +181,12 @@ public class Connector
      */
     public static Repository getRepository()
     {
-        if ( connection != null )
+        Connection conn = connection;
+        if ( conn instanceof CachingConnection )
+            conn = ((CachingConnection)conn).getDelegate();
+        if ( conn != null )
         {
-            if ( connection instanceof MongoConnection )
+            if ( conn instanceof MongoConnection )
                 return Repository.MONGO;
         }
         return Repository.UNSET;
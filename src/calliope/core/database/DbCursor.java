@@ -0,0 +1,34 @@
+/* This file is part of calliope.
+ *
+ *  calliope is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  calliope is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with calliope.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package calliope.core.database;
+
+import java.util.Iterator;
+
+/**
+ * A live cursor over the results of a query. Only one batch of results 
+ * is held in memory at a time, so it must be closed when finished with, 
+ * preferably in a try-with-resources block.
+ * @author desmond
+ * @param <T> the type of each result
+ */
+public interface DbCursor<T> extends Iterator<T>, AutoCloseable
+{
+    /**
+     * Release the cursor on the server
+     */
+    @Override
+    public void close();
+}
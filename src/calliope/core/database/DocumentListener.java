@@ -0,0 +1,30 @@
+/* This file is part of calliope.
+ *
+ *  calliope is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  calliope is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with calliope.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package calliope.core.database;
+
+/**
+ * Callback to allow notifications of documents written or removed
+ * @author desmond
+ */
+public interface DocumentListener 
+{
+    /**
+     * A document was written or removed through a Connection
+     * @param coll the collection it is in
+     * @param docid its docid or null if any document in coll may have changed
+     */
+    public void documentChanged( String coll, String docid );
+}
@@ -0,0 +1,94 @@
+/* This file is part of calliope.
+ *
+ *  calliope is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  calliope is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with calliope.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package calliope.core.database;
+
+import calliope.core.constants.Database;
+import calliope.core.constants.JSONKeys;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * The indexes each collection needs for the queries made on it. Each
+ * index is an array of keys: one key for a single-field index, several
+ * for a compound one, in order.
+ * @author desmond
+ */
+public class Indexes
+{
+    static HashMap<String,ArrayList<String[]>> specs;
+    static
+    {
+        specs = new HashMap<String,ArrayList<String[]>>();
+        // every collection is looked up and listed by docid
+        String[] names = Database.all();
+        for ( int i=0;i<names.length;i++ )
+            declare( names[i], JSONKeys.DOCID );
+        // scratch versions are fetched by dbase, docid and version1
+        declare( Database.SCRATCH, JSONKeys.DBASE, JSONKeys.DOCID,
+            JSONKeys.VERSION1 );
+    }
+    /**
+     * Declare an index on a collection
+     * @param coll the collection name
+     * @param keys the keys of the index in order
+     */
+    static void declare( String coll, String... keys )
+    {
+        ArrayList<String[]> list = specs.get( coll );
+        if ( list == null )
+        {
+            list = new ArrayList<String[]>();
+            specs.put( coll, list );
+        }
+        list.add( keys );
+    }
+    /**
+     * Get the indexes required by a collection
+     * @param coll the collection name
+     * @return an array of key arrays, possibly empty
+     */
+    public static String[][] forCollection( String coll )
+    {
+        ArrayList<String[]> list = specs.get( coll );
+        if ( list == null )
+            return new String[0][];
+        else
+        {
+            String[][] arr = new String[list.size()][];
+            list.toArray( arr );
+            return arr;
+        }
+    }
+    /**
+     * Describe an index for logging
+     * @param coll the collection name
+     * @param keys the index keys
+     * @return a readable description
+     */
+    public static String describe( String coll, String[] keys )
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append( coll );
+        sb.append( ":" );
+        for ( int i=0;i<keys.length;i++ )
+        {
+            if ( i > 0 )
+                sb.append( "," );
+            sb.append( keys[i] );
+        }
+        return sb.toString();
+    }
+}
@@ -20,7 +20,17 @@ import calliope.core.constants.Database;
 import calliope.core.constants.JSONKeys;
 import java.util.Iterator;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.ServerAddress;
+import com.mongodb.DBPortPool;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.util.JSON;
@@ -28,7 +38,18 @@ import com.mongodb.BasicDBObject;
 import org.bson.types.ObjectId;
 import com.mongodb.DBObject;
 import com.mongodb.WriteConcern;
+import com.mongodb.ReadPreference;
 import com.mongodb.DBCursor;
+import com.mongodb.MongoException;
+import com.mongodb.LazyDBDecoder;
+import org.bson.LazyBSONObject;
+import com.mongodb.gridfs.GridFS;
+import com.mongodb.gridfs.GridFSDBFile;
+import com.mongodb.gridfs.GridFSInputFile;
+import edu.luc.nmerge.mvd.Base64;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
 import org.json.simple.*;
 import com.mongodb.WriteResult;
 
@@ -41,47 +62,508 @@ import java.util.regex.Pattern;
  */
 public class MongoConnection extends Connection 
 {
-    MongoClient client;
     static int MONGO_PORT = 27017;
+    /** bodies bigger than this are stored in GridFS, not in the document */
+    public static int GRIDFS_THRESHOLD = 8*1024*1024;
+    /** the GridFS bucket holding large bodies */
+    static String BODY_BUCKET = "bodies";
+    /** GridFS store for large bodies, created on first use */
+    volatile GridFS bodies;
+    /** the one client shared by all threads using this connection */
+    volatile MongoClient client;
     /** connection to database */
-    DB  db;
+    volatile DB  db;
+    /** set once close is called, so the client is never recreated */
+    volatile boolean closed;
+    /** limits on the client's socket pool */
+    PoolConfig pool;
+    /** collection handles already resolved, keyed by name */
+    ConcurrentHashMap<String,DBCollection> collections;
+    /** whether each collection was found to keep bodies in GridFS */
+    ConcurrentHashMap<String,Boolean> bodyFileColls;
+    /** indexes that were missing when their collection was first opened */
+    CopyOnWriteArrayList<String> missingIndexes;
     public MongoConnection( String user, String password, String host, 
         String dbName, int dbPort, int wsPort, String webRoot )
+    {
+        this( user, password, host, dbName, dbPort, wsPort, webRoot, 
+            new PoolConfig() );
+    }
+    public MongoConnection( String user, String password, String host, 
+        String dbName, int dbPort, int wsPort, String webRoot, 
+        PoolConfig pool )
     {
         super( user, password, host, dbName, dbPort, wsPort, webRoot );
+        this.pool = pool;
+        this.collections = new ConcurrentHashMap<String,DBCollection>();
+        this.bodyFileColls = new ConcurrentHashMap<String,Boolean>();
+        this.missingIndexes = new CopyOnWriteArrayList<String>();
     }
     /**
-     * Connect to the database
+     * Connect to the database. Only the first caller creates the client.
      * @throws Exception 
      */
     private void connect() throws Exception
     {
         if ( db == null )
         {
-            MongoClient mongoClient = new MongoClient( host, MONGO_PORT );
-            db = mongoClient.getDB(this.databaseName);
-            //boolean auth = db.authenticate( user, password.toCharArray() );
-            //if ( !auth )
-            //    throw new DbException( "MongoDB authentication failed");
+            synchronized ( this )
+            {
+                if ( closed )
+                    throw new DbException( "connection closed" );
+                if ( db == null )
+                {
+                    MongoClientOptions options = MongoClientOptions.builder()
+                        .connectionsPerHost(pool.getPoolSize())
+                        .threadsAllowedToBlockForConnectionMultiplier(
+                            pool.getWaitQueueMultiple())
+                        .maxWaitTime(pool.getWaitQueueTimeout())
+                        .connectTimeout(pool.getConnectTimeout())
+                        .socketTimeout(pool.getSocketTimeout())
+                        .build();
+                    int port = (dbPort>0)?dbPort:MONGO_PORT;
+                    client = new MongoClient( 
+                        new ServerAddress(host,port), options );
+                    DB database = client.getDB(this.databaseName);
+                    //boolean auth = db.authenticate( user, password.toCharArray() );
+                    //if ( !auth )
+                    //    throw new DbException( "MongoDB authentication failed");
+                    String[] names = Database.all();
+                    for ( int i=0;i<names.length;i++ )
+                        openCollection( database, names[i] );
+                    db = database;
+                }
+            }
         }
     }
     /**
-     * Get the Mongo db collection object from its name
+     * Release the client and all its pooled sockets. Calls still in 
+     * progress or made later fail with a DbException.
+     */
+    @Override
+    public synchronized void close()
+    {
+        closed = true;
+        if ( client != null )
+        {
+            client.close();
+            client = null;
+            db = null;
+            bodies = null;
+            collections.clear();
+        }
+    }
+    /**
+     * How close is the socket pool to being exhausted?
+     * @return the fraction of the pool in use, from 0.0 to 1.0
+     */
+    @Override
+    public double getPoolSaturation()
+    {
+        MongoClient mc = client;
+        if ( mc != null )
+        {
+            try
+            {
+                DBPortPool ports = mc.getConnector().getDBPortPool( 
+                    mc.getAddress() );
+                int max = ports.getMaxSize();
+                if ( max > 0 )
+                    return (double)ports.getInUse()/(double)max;
+            }
+            catch ( Exception e )
+            {
+                // not connected yet or the server went away
+            }
+        }
+        return 0.0;
+    }
+    /**
+     * Convert a write safety level into a Mongo write concern
+     * @param safety the write safety
+     * @return the equivalent write concern
+     */
+    static WriteConcern toWriteConcern( WriteSafety safety )
+    {
+        switch ( safety )
+        {
+            case UNACKNOWLEDGED:
+                return WriteConcern.UNACKNOWLEDGED;
+            case JOURNALED:
+                return WriteConcern.JOURNALED;
+            case MAJORITY:
+                return WriteConcern.MAJORITY;
+            default:
+                return WriteConcern.ACKNOWLEDGED;
+        }
+    }
+    /**
+     * Convert a read source into a Mongo read preference
+     * @param source the read source
+     * @return the equivalent read preference
+     */
+    static ReadPreference toReadPreference( ReadSource source )
+    {
+        switch ( source )
+        {
+            case PRIMARY_PREFERRED:
+                return ReadPreference.primaryPreferred();
+            case SECONDARY:
+                return ReadPreference.secondary();
+            case SECONDARY_PREFERRED:
+                return ReadPreference.secondaryPreferred();
+            case NEAREST:
+                return ReadPreference.nearest();
+            default:
+                return ReadPreference.primary();
+        }
+    }
+    /**
+     * Make the policy for a collection the default for its handle
+     * @param coll the collection
+     */
+    private void applyPolicy( DBCollection coll )
+    {
+        AccessPolicy ap = policy;
+        coll.setWriteConcern( toWriteConcern(
+            ap.getWriteSafety(coll.getName())) );
+        coll.setReadPreference( toReadPreference(
+            ap.getReadSource(coll.getName())) );
+    }
+    /**
+     * Get the write concern for one write. The policy is looked up on 
+     * each call, so a write never uses one replaced by setPolicy.
+     * @param coll the collection being written to
+     * @param safety the override for this write or null
+     * @return the write concern to use
+     */
+    private WriteConcern writeConcern( DBCollection coll, WriteSafety safety )
+    {
+        if ( safety == null )
+            safety = policy.getWriteSafety( coll.getName() );
+        return toWriteConcern( safety );
+    }
+    /**
+     * Set the write safety and read source used for each collection
+     * @param policy the new policy
+     */
+    @Override
+    public void setPolicy( AccessPolicy policy )
+    {
+        super.setPolicy( policy );
+        Iterator<DBCollection> iter = collections.values().iterator();
+        while ( iter.hasNext() )
+            applyPolicy( iter.next() );
+    }
+    /**
+     * Resolve a collection, creating it if need be, and remember it
+     * @param database the database it belongs to
      * @param collName the collection name
      * @return a DBCollection object
      * @throws DbException 
      */
-    private DBCollection getCollectionFromName( String collName )
+    private DBCollection openCollection( DB database, String collName )
         throws DbException
     {
-        DBCollection coll = db.getCollection( collName );
+        DBCollection coll = database.getCollection( collName );
         if ( coll == null )
-            coll = db.createCollection( collName, null );
+            coll = database.createCollection( collName, null );
         if ( coll != null )
-            return coll;
+        {
+            DBCollection prev = collections.get( collName );
+            if ( prev != null )
+                return prev;
+            // a collection that could not be indexed is not remembered
+            applyPolicy( coll );
+            ensureIndexes( coll );
+            prev = collections.putIfAbsent( collName, coll );
+            return (prev!=null)?prev:coll;
+        }
         else
             throw new DbException( "Unknown collection "+collName );
     }
+    /**
+     * Does a collection already have an index on exactly these keys?
+     * @param indexes the index info of the collection
+     * @param keys the keys of the wanted index in order
+     * @return true if it is there
+     */
+    private static boolean hasIndex( List<DBObject> indexes, String[] keys )
+    {
+        for ( DBObject info : indexes )
+        {
+            DBObject key = (DBObject)info.get( "key" );
+            if ( key != null && key.keySet().size() == keys.length )
+            {
+                Iterator<String> iter = key.keySet().iterator();
+                int i = 0;
+                while ( i<keys.length && keys[i].equals(iter.next()) )
+                    i++;
+                if ( i == keys.length )
+                    return true;
+            }
+        }
+        return false;
+    }
+    /**
+     * Create any indexes declared for a collection that it lacks. Those 
+     * missing are recorded for getMissingIndexes, since they are built in 
+     * the background and queries will scan the collection until they are 
+     * ready.
+     * @param coll the collection
+     * @throws DbException if the indexes could not be read or created
+     */
+    private void ensureIndexes( DBCollection coll ) throws DbException
+    {
+        String[][] specs = Indexes.forCollection( coll.getName() );
+        if ( specs.length > 0 )
+        {
+            try
+            {
+                List<DBObject> existing = coll.getIndexInfo();
+                for ( int i=0;i<specs.length;i++ )
+                {
+                    if ( !hasIndex(existing,specs[i]) )
+                    {
+                        String desc = Indexes.describe(coll.getName(),
+                            specs[i]);
+                        missingIndexes.addIfAbsent( desc );
+                        BasicDBObject keys = new BasicDBObject();
+                        for ( int j=0;j<specs[i].length;j++ )
+                            keys.put( specs[i][j], 1 );
+                        coll.createIndex( keys, 
+                            new BasicDBObject("background",true) );
+                    }
+                }
+            }
+            catch ( Exception e )
+            {
+                throw new DbException( "failed to index "+coll.getName()
+                    +": "+e.getMessage() );
+            }
+        }
+    }
+    /**
+     * Get the indexes found missing when collections were opened
+     * @return an array of index descriptions, possibly empty
+     */
+    @Override
+    public String[] getMissingIndexes()
+    {
+        String[] arr = new String[missingIndexes.size()];
+        return missingIndexes.toArray( arr );
+    }
+    /**
+     * Give a document a fresh revision marker, so that anything derived 
+     * from an older copy of it can tell that it is stale
+     * @param doc the document about to be written
+     */
+    static void stampRevision( DBObject doc )
+    {
+        doc.put( JSONKeys.REV, new ObjectId().toString() );
+    }
+    /**
+     * Get the GridFS store for large bodies
+     * @return the store
+     * @throws Exception 
+     */
+    GridFS getBodies() throws Exception
+    {
+        connect();
+        if ( bodies == null )
+        {
+            synchronized ( this )
+            {
+                if ( bodies == null )
+                    bodies = new GridFS( getDB(), BODY_BUCKET );
+            }
+        }
+        return bodies;
+    }
+    /**
+     * Get the name of the GridFS file for one revision of a document's body
+     * @param collName the collection name
+     * @param docID the document's docid
+     * @param rev the revision of the document being written
+     * @return a name unique to that document and revision
+     */
+    static String bodyFileName( String collName, String docID, String rev )
+    {
+        return collName+"/"+docID+"/"+rev;
+    }
+    /**
+     * Might any document in a collection have its body in GridFS? Each 
+     * collection is only asked once, so that those which never use GridFS 
+     * don't pay for it when documents are removed or replaced.
+     * @param coll the collection
+     * @return true if a body in GridFS was found or written
+     */
+    private boolean hasBodyFiles( DBCollection coll )
+    {
+        Boolean has = bodyFileColls.get( coll.getName() );
+        if ( has == null )
+        {
+            DBObject query = new BasicDBObject( JSONKeys.BODY_FILE, 
+                new BasicDBObject("$exists",true) );
+            has = coll.findOne( query, new BasicDBObject(JSONKeys._ID,1) ) 
+                != null;
+            Boolean prev = bodyFileColls.putIfAbsent( coll.getName(), has );
+            if ( prev != null )
+                has = prev;
+        }
+        return has;
+    }
+    /**
+     * Find the GridFS files of the documents a query matches, before they 
+     * are removed or replaced
+     * @param coll the collection
+     * @param query the query selecting the documents
+     * @return the names of their body files, perhaps empty
+     */
+    private ArrayList<String> findBodyFiles( DBCollection coll, 
+        DBObject query )
+    {
+        ArrayList<String> names = new ArrayList<String>();
+        if ( hasBodyFiles(coll) )
+        {
+            BasicDBObject q = new BasicDBObject( query.toMap() );
+            q.put( JSONKeys.BODY_FILE, new BasicDBObject("$exists",true) );
+            DBCursor curs = coll.find( q, 
+                new BasicDBObject(JSONKeys.BODY_FILE,1) );
+            try
+            {
+                while ( curs.hasNext() )
+                {
+                    Object name = curs.next().get( JSONKeys.BODY_FILE );
+                    if ( name instanceof String )
+                        names.add( (String)name );
+                }
+            }
+            finally
+            {
+                curs.close();
+            }
+        }
+        return names;
+    }
+    /**
+     * Remove the GridFS files of documents that were removed or replaced
+     * @param names the names of the files
+     * @throws Exception 
+     */
+    private void removeBodyFiles( List<String> names ) throws Exception
+    {
+        if ( names.size() > 0 )
+        {
+            GridFS fs = getBodies();
+            for ( int i=0;i<names.size();i++ )
+                fs.remove( names.get(i) );
+        }
+    }
+    /**
+     * Read the body of a document in whatever form it was stored
+     * @param obj the document, or at least its body fields
+     * @return the body as bytes or null if it has none
+     * @throws Exception 
+     */
+    byte[] readBody( DBObject obj ) throws Exception
+    {
+        Object body = obj.get( JSONKeys.BODY );
+        if ( body instanceof byte[] )
+            return (byte[])body;
+        else if ( body instanceof String )
+            return Base64.decode( (String)body );
+        else if ( obj.containsField(JSONKeys.BODY_FILE) )
+        {
+            GridFSDBFile file = getBodies().findOne( 
+                (String)obj.get(JSONKeys.BODY_FILE) );
+            if ( file != null )
+            {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream( 
+                    (int)file.getLength() );
+                file.writeTo( bos );
+                return bos.toByteArray();
+            }
+        }
+        return null;
+    }
+    /**
+     * Put a binary body back into base64 text form for callers that 
+     * expect documents as JSON strings
+     * @param obj the document as read from the database
+     * @return the same document with a text body
+     */
+    DBObject toTextBody( DBObject obj )
+    {
+        if ( obj.get(JSONKeys.BODY) instanceof byte[] 
+            || obj.containsField(JSONKeys.BODY_FILE) )
+        {
+            try
+            {
+                byte[] data = readBody( obj );
+                obj.removeField( JSONKeys.BODY_FILE );
+                if ( data != null )
+                    obj.put( JSONKeys.BODY, Base64.encodeBytes(data, 
+                        Base64.DONT_BREAK_LINES) );
+            }
+            catch ( Exception e )
+            {
+                throw new MongoException( "failed to read body", e );
+            }
+        }
+        return obj;
+    }
+    /**
+     * Give a document its binary body as raw bytes for the typed reads, 
+     * fetching a body kept in GridFS. Text bodies are left alone, and 
+     * binary ones are not base64-encoded.
+     * @param obj the document as read from the database
+     * @return the same document with any binary body as a byte array
+     */
+    DBObject toRawBody( DBObject obj )
+    {
+        if ( obj.containsField(JSONKeys.BODY_FILE) )
+        {
+            try
+            {
+                byte[] data = readBody( obj );
+                obj.removeField( JSONKeys.BODY_FILE );
+                if ( data != null )
+                    obj.put( JSONKeys.BODY, data );
+            }
+            catch ( Exception e )
+            {
+                throw new MongoException( "failed to read body", e );
+            }
+        }
+        return obj;
+    }
+    /**
+     * Get the Mongo db collection object from its name
+     * @param collName the collection name
+     * @return a DBCollection object
+     * @throws DbException 
+     */
+    private DBCollection getCollectionFromName( String collName )
+        throws DbException
+    {
+        DBCollection coll = collections.get( collName );
+        if ( coll == null )
+            coll = openCollection( getDB(), collName );
+        return coll;
+    }
+    /**
+     * Get the database, which is null once the connection is closed
+     * @return the open database
+     * @throws DbException if the connection was closed
+     */
+    private DB getDB() throws DbException
+    {
+        DB database = db;
+        if ( database == null )
+            throw new DbException( "connection closed" );
+        return database;
+    }
     /**
      * Fetch a resource from the server via a given field value
      * @param collName the collection or database name
@@ -92,6 +574,36 @@ public class MongoConnection extends Connection
     @Override
     public String getFromDbByField( String collName, String value, String field ) 
         throws DbException
+    {
+        return getFromDbByField( collName, value, field, null );
+    }
+    /**
+     * Fetch a resource from the server via a given field value
+     * @param collName the collection or database name
+     * @param value the value of the field
+     * @param field the field name
+     * @param source where to read from or null for the collection default
+     * @return the response as a string or null if not found
+     */
+    private String getFromDbByField( String collName, String value, 
+        String field, ReadSource source ) throws DbException
+    {
+        DBObject obj = findByField( collName, value, field, source );
+        if ( obj != null )
+            return toTextBody(obj).toString();
+        else
+            return null;
+    }
+    /**
+     * Find a document via a given field value
+     * @param collName the collection or database name
+     * @param value the value of the field
+     * @param field the field name
+     * @param source where to read from or null for the collection default
+     * @return the document or null if not found
+     */
+    private DBObject findByField( String collName, String value, 
+        String field, ReadSource source ) throws DbException
     {
         try
         {
@@ -105,68 +617,115 @@ public class MongoConnection extends Connection
             }
             else
                 query = new BasicDBObject(field,value);
-            DBObject obj = coll.findOne( query );
-            if ( obj != null )
-                return obj.toString();
-            else
-                return null;
+            return (source==null)?coll.findOne( query )
+                :coll.findOne( query, null, toReadPreference(source) );
         }
         catch ( Exception e )
         {
             throw new DbException( e );
         }
     }
-    DBObject getThreeFieldQuery( String field1, String value1, String field2, 
-        String value2, String field3, String value3 )
+    /**
+     * Convert a value read from the database into the form JSONValue.parse 
+     * would give it if read from the document's JSON string. Binary data 
+     * stays a byte array.
+     * @param value a value from a DBObject
+     * @return a JSONObject, JSONArray, String, Long, Double, Boolean, 
+     * byte array or null
+     */
+    @SuppressWarnings("unchecked")  // json-simple's collections are raw
+    static Object toJSON( Object value )
     {
-        DBObject query;
-        if ( field1.equals(JSONKeys._ID) )
+        if ( value == null || value instanceof String 
+            || value instanceof Boolean || value instanceof Long 
+            || value instanceof Double || value instanceof byte[] )
+            return value;
+        else if ( value instanceof Integer || value instanceof Short 
+            || value instanceof Byte )
+            return ((Number)value).longValue();
+        else if ( value instanceof Float )
+            return ((Float)value).doubleValue();
+        else if ( value instanceof List )
         {
-            ObjectId objId = new ObjectId(value1);
-            query = new BasicDBObject( field1, objId );
+            List<?> list = (List<?>)value;
+            JSONArray jArr = new JSONArray();
+            for ( int i=0;i<list.size();i++ )
+                jArr.add( toJSON(list.get(i)) );
+            return jArr;
         }
-        else
-            query = new BasicDBObject(field1,value1);
-        if ( field2.equals(JSONKeys._ID) )
+        else if ( value instanceof BasicDBObject )
         {
-            ObjectId objId = new ObjectId(value2);
-            query.put(field2, objId );
+            BasicDBObject obj = (BasicDBObject)value;
+            JSONObject jObj = new JSONObject();
+            for ( Map.Entry<String,Object> entry : obj.entrySet() )
+                jObj.put( entry.getKey(), toJSON(entry.getValue()) );
+            return jObj;
         }
-        else
-            query.put(field2,value2);
-        if ( field3.equals(JSONKeys._ID) )
+        else if ( value instanceof ObjectId )
         {
-            ObjectId objId = new ObjectId(value3);
-            query.put(field3, objId );
+            JSONObject jObj = new JSONObject();
+            jObj.put( "$oid", value.toString() );
+            return jObj;
         }
-        else
-            query.put(field3,value3);
-        return query;
+        else    // dates, patterns etc. are rare: let the driver say how
+            return JSONValue.parse( JSON.serialize(value) );
     }
     /**
      * Fetch a resource from the server via a given field value
      * @param collName the collection or database name
-     * @param field1 the first field name
-     * @param value1 the value of the first field
-     * @param field2 the second field name
-     * @param value2 the value of the second field
-     * @param field3 its field name
-     * @param value3 the third value
-     * @return the response as a string or null if not found
+     * @param value the value of the field
+     * @param field the field name
+     * @return the document or null if not found
      */
-    private String getFromDbByThreeFields( String collName, String field1, 
-        String value1, String field2, String value2, String field3, 
-        String value3 ) throws DbException
+    @Override
+    public JSONObject getObjectFromDbByField( String collName, String value, 
+        String field ) throws DbException
+    {
+        DBObject obj = findByField( collName, value, field, null );
+        if ( obj != null )
+            return (JSONObject)toJSON( toRawBody(obj) );
+        else
+            return null;
+    }
+    /**
+     * Fetch a resource from the server
+     * @param collName the collection or database name
+     * @param docID the docid of the resource
+     * @return the document or null if not found
+     */
+    @Override
+    public JSONObject getObjectFromDb( String collName, String docID ) 
+        throws DbException
+    {
+        return getObjectFromDbByField( collName, docID, JSONKeys.DOCID );
+    }
+    /**
+     * Fetch only some fields of a resource from the server
+     * @param collName the collection or database name
+     * @param docID the docid of the resource
+     * @param fields the names of the fields to fetch
+     * @return the requested fields or null if not found
+     */
+    @Override
+    public JSONObject getObjectFromDb( String collName, String docID, 
+        String... fields ) throws DbException
     {
         try
         {
             connect();
             DBCollection coll = getCollectionFromName( collName );
-            DBObject query = getThreeFieldQuery( field1, value1, field2, 
-                value2, field3, value3 );
-            DBObject obj = coll.findOne( query );
+            DBObject query = new BasicDBObject( JSONKeys.DOCID, docID );
+            BasicDBObject keys = new BasicDBObject( JSONKeys._ID, 0 );
+            for ( int i=0;i<fields.length;i++ )
+            {
+                keys.put( fields[i], 1 );
+                // a body kept in GridFS is found through its file name
+                if ( fields[i].equals(JSONKeys.BODY) )
+                    keys.put( JSONKeys.BODY_FILE, 1 );
+            }
+            DBObject obj = coll.findOne( query, keys );
             if ( obj != null )
-                return obj.toString();
+                return (JSONObject)toJSON( toRawBody(obj) );
             else
                 return null;
         }
@@ -176,7 +735,136 @@ public class MongoConnection extends Connection
         }
     }
     /**
-     * Fetch a resource from the server, or try to.
+     * Fetch all but some fields of a resource from the server
+     * @param collName the collection or database name
+     * @param docID the docid of the resource
+     * @param fields the names of the fields to leave out
+     * @return the other fields or null if not found
+     */
+    @Override
+    public JSONObject getObjectFromDbExcept( String collName, String docID, 
+        String... fields ) throws DbException
+    {
+        try
+        {
+            connect();
+            DBCollection coll = getCollectionFromName( collName );
+            DBObject query = new BasicDBObject( JSONKeys.DOCID, docID );
+            BasicDBObject keys = new BasicDBObject();
+            for ( int i=0;i<fields.length;i++ )
+            {
+                keys.put( fields[i], 0 );
+                // don't fetch a body kept in GridFS either
+                if ( fields[i].equals(JSONKeys.BODY) )
+                    keys.put( JSONKeys.BODY_FILE, 0 );
+            }
+            DBObject obj = coll.findOne( query, keys );
+            if ( obj != null )
+                return (JSONObject)toJSON( toRawBody(obj) );
+            else
+                return null;
+        }
+        catch ( Exception e )
+        {
+            throw new DbException( e );
+        }
+    }
+    /**
+     * Fetch a resource from the server as the BSON the server sent
+     * @param collName the collection or database name
+     * @param docID the docid of the resource
+     * @return the BSON document or null if not found
+     */
+    @Override
+    public byte[] getBsonFromDb( String collName, String docID ) 
+        throws DbException
+    {
+        try
+        {
+            connect();
+            DBCollection coll = getCollectionFromName( collName );
+            DBObject query = new BasicDBObject( JSONKeys.DOCID, docID );
+            try ( DBCursor curs = coll.find(query).limit(1)
+                .setDecoderFactory(LazyDBDecoder.FACTORY) )
+            {
+                if ( curs.hasNext() )
+                {
+                    LazyBSONObject obj = (LazyBSONObject)curs.next();
+                    ByteArrayOutputStream bos = new ByteArrayOutputStream(
+                        obj.getBSONSize() );
+                    obj.pipe( bos );
+                    return bos.toByteArray();
+                }
+                else
+                    return null;
+            }
+        }
+        catch ( Exception e )
+        {
+            throw new DbException( e );
+        }
+    }
+    DBObject getThreeFieldQuery( String field1, String value1, String field2, 
+        String value2, String field3, String value3 )
+    {
+        DBObject query;
+        if ( field1.equals(JSONKeys._ID) )
+        {
+            ObjectId objId = new ObjectId(value1);
+            query = new BasicDBObject( field1, objId );
+        }
+        else
+            query = new BasicDBObject(field1,value1);
+        if ( field2.equals(JSONKeys._ID) )
+        {
+            ObjectId objId = new ObjectId(value2);
+            query.put(field2, objId );
+        }
+        else
+            query.put(field2,value2);
+        if ( field3.equals(JSONKeys._ID) )
+        {
+            ObjectId objId = new ObjectId(value3);
+            query.put(field3, objId );
+        }
+        else
+            query.put(field3,value3);
+        return query;
+    }
+    /**
+     * Fetch a resource from the server via a given field value
+     * @param collName the collection or database name
+     * @param field1 the first field name
+     * @param value1 the value of the first field
+     * @param field2 the second field name
+     * @param value2 the value of the second field
+     * @param field3 its field name
+     * @param value3 the third value
+     * @return the response as a string or null if not found
+     */
+    private String getFromDbByThreeFields( String collName, String field1, 
+        String value1, String field2, String value2, String field3, 
+        String value3 ) throws DbException
+    {
+        try
+        {
+            connect();
+            DBCollection coll = getCollectionFromName( collName );
+            DBObject query = getThreeFieldQuery( field1, value1, field2, 
+                value2, field3, value3 );
+            DBObject obj = coll.findOne( query );
+            if ( obj != null )
+                return toTextBody(obj).toString();
+            else
+                return null;
+        }
+        catch ( Exception e )
+        {
+            throw new DbException( e );
+        }
+    }
+    /**
+     * Fetch a resource from the server, or try to.
      * @param collName the collection or database name
      * @param docID the path to the resource in the collection
      * @return the response as a string or null if not found
@@ -186,6 +874,19 @@ public class MongoConnection extends Connection
     {
         return getFromDbByField( collName,docID, JSONKeys.DOCID );
     }
+    /**
+     * Fetch a resource from the server, overriding the read source
+     * @param collName the collection or database name
+     * @param docID the path to the resource in the collection
+     * @param source where to read from or null for the collection default
+     * @return the response as a string or null if not found
+     */
+    @Override
+    public String getFromDb( String collName, String docID, 
+        ReadSource source ) throws DbException
+    {
+        return getFromDbByField( collName, docID, JSONKeys.DOCID, source );
+    }
     /**
      * Fetch a resource from the server, or try to.
      * @param collName the collection or database name
@@ -202,25 +903,583 @@ public class MongoConnection extends Connection
             JSONKeys.DOCID, docID, JSONKeys.VERSION1, version );
     }
     /**
-     * PUT a json file to the database
-     * @param collName the name of the collection
+     * PUT a json file to the database
+     * @param collName the name of the collection
+     * @param docID the docid of the resource 
+     * @param json the json to put there
+     * @return the server response
+     */
+    @Override
+    public String putToDb( String collName, String docID, String json ) 
+        throws DbException
+    {
+        return putToDb( collName, docID, json, null );
+    }
+    /**
+     * PUT a json file to the database, overriding the write safety
+     * @param collName the name of the collection
+     * @param docID the docid of the resource 
+     * @param json the json to put there
+     * @param safety how safe the write must be or null for the default
+     * @return the server response
+     */
+    @Override
+    public String putToDb( String collName, String docID, String json,
+        WriteSafety safety ) throws DbException
+    {
+        try
+        {
+            DBObject doc = (DBObject) JSON.parse(json);
+            doc.put( JSONKeys.DOCID, docID );
+            connect();
+            DBCollection coll = getCollectionFromName( collName );
+            DBObject query = new BasicDBObject( JSONKeys.DOCID, docID );
+            stampRevision( doc );
+            // the new document replaces any body kept in GridFS
+            ArrayList<String> files = findBodyFiles( coll, query );
+            WriteResult result = coll.update( query, doc, true, false,
+                writeConcern(coll,safety) );
+            removeBodyFiles( files );
+            fireChanged( collName, docID );
+            //return removeFromDb( path );
+            return result.toString();
+        }
+        catch ( Exception e )
+        {
+            throw new DbException( e );
+        }
+    }
+    /**
+     * PUT a json file to the database using dbase, docid and version
+     * @param collName the name of the collection
+     * @param dbase the name of the database 
+     * @param docid the document identifier
+     * @param version the version of the document
+     * @param json the json to put there
+     * @return the server response
+     */
+    @Override
+    public String putToDb( String collName, String dbase, 
+        String docid, String version, String json ) throws DbException
+    {
+        return putToDb( collName, dbase, docid, version, json, null );
+    }
+    /**
+     * PUT a json file to the database using dbase, docid and version, 
+     * overriding the write safety
+     * @param collName the name of the collection
+     * @param dbase the name of the database 
+     * @param docid the document identifier
+     * @param version the version of the document
+     * @param json the json to put there
+     * @param safety how safe the write must be or null for the default
+     * @return the server response
+     */
+    @Override
+    public String putToDb( String collName, String dbase, String docid, 
+        String version, String json, WriteSafety safety ) throws DbException
+    {
+        try
+        {
+            DBObject doc = (DBObject) JSON.parse(json);
+            doc.put( JSONKeys.DOCID, docid );
+            connect();
+            DBObject query = getThreeFieldQuery(JSONKeys.DBASE,dbase,
+                JSONKeys.DOCID,docid,JSONKeys.VERSION1, version);
+            DBCollection coll = getCollectionFromName( collName );
+            stampRevision( doc );
+            ArrayList<String> files = findBodyFiles( coll, query );
+            WriteResult result = coll.update( query, doc, true, false,
+                writeConcern(coll,safety) );
+            removeBodyFiles( files );
+            fireChanged( collName, docid );
+            //return removeFromDb( path );
+            return result.toString();
+        }
+        catch ( Exception e )
+        {
+            throw new DbException( e );
+        }
+    }
+    /**
+     * Find which of a set of docids are in a collection
+     * @param coll the collection
+     * @param docids the docids to look for
+     * @return the subset of docids that are present
+     */
+    private HashSet<String> findDocids( DBCollection coll, 
+        List<String> docids )
+    {
+        HashSet<String> found = new HashSet<String>();
+        DBObject query = new BasicDBObject( JSONKeys.DOCID, 
+            new BasicDBObject("$in",docids) );
+        DBCursor curs = coll.find( query, new BasicDBObject(JSONKeys.DOCID,1) )
+            .batchSize( batchSize );
+        try
+        {
+            while ( curs.hasNext() )
+            {
+                Object docid = curs.next().get( JSONKeys.DOCID );
+                if ( docid != null )
+                    found.add( docid.toString() );
+            }
+        }
+        finally
+        {
+            curs.close();
+        }
+        return found;
+    }
+    /**
+     * PUT many json files to the database in batches, replacing any 
+     * documents with the same docids. A failed item does not stop the 
+     * rest.
+     * @param collName the name of the collection
+     * @param docs a map of docids to json documents
+     * @return the outcome for each docid
+     * @throws DbException 
+     */
+    @Override
+    public BulkResult putManyToDb( String collName, Map<String,String> docs ) 
+        throws DbException
+    {
+        return putManyToDb( collName, docs, null );
+    }
+    /**
+     * PUT many json files to the database, overriding the write safety
+     * @param collName the name of the collection
+     * @param docs a map of docids to json documents
+     * @param safety how safe the writes must be or null for the default
+     * @return the outcome for each docid
+     * @throws DbException 
+     */
+    @Override
+    public BulkResult putManyToDb( String collName, Map<String,String> docs,
+        WriteSafety safety ) throws DbException
+    {
+        try
+        {
+            connect();
+            DBCollection coll = getCollectionFromName( collName );
+            BulkResult result = new BulkResult();
+            ArrayList<String> docids = new ArrayList<String>();
+            ArrayList<DBObject> batch = new ArrayList<DBObject>();
+            Iterator<Map.Entry<String,String>> iter = docs.entrySet().iterator();
+            while ( iter.hasNext() )
+            {
+                Map.Entry<String,String> entry = iter.next();
+                try
+                {
+                    DBObject doc = (DBObject) JSON.parse(entry.getValue());
+                    doc.put( JSONKeys.DOCID, entry.getKey() );
+                    stampRevision( doc );
+                    docids.add( entry.getKey() );
+                    batch.add( doc );
+                }
+                catch ( Exception e )
+                {
+                    result.add( entry.getKey(), "invalid JSON: "
+                        +e.getMessage() );
+                }
+                if ( batch.size() == batchSize || !iter.hasNext() )
+                {
+                    if ( batch.size() > 0 )
+                    {
+                        ArrayList<String> written = putBatch( coll, docids, 
+                            batch, writeConcern(coll,safety), result );
+                        for ( int i=0;i<written.size();i++ )
+                            fireChanged( collName, written.get(i) );
+                    }
+                    docids.clear();
+                    batch.clear();
+                }
+            }
+            return result;
+        }
+        catch ( Exception e )
+        {
+            throw new DbException( e );
+        }
+    }
+    /**
+     * Find the GridFS files of some documents by docid
+     * @param coll the collection
+     * @param docids the docids of the documents
+     * @return a map of docids to body file names, for those that have one
+     */
+    private HashMap<String,String> findBodyFilesByDocid( DBCollection coll, 
+        List<String> docids )
+    {
+        HashMap<String,String> files = new HashMap<String,String>();
+        if ( docids.size() > 0 && hasBodyFiles(coll) )
+        {
+            BasicDBObject query = new BasicDBObject( JSONKeys.DOCID, 
+                new BasicDBObject("$in",docids) );
+            query.put( JSONKeys.BODY_FILE, new BasicDBObject("$exists",true) );
+            BasicDBObject fields = new BasicDBObject( JSONKeys.DOCID, 1 );
+            fields.put( JSONKeys.BODY_FILE, 1 );
+            DBCursor curs = coll.find( query, fields );
+            try
+            {
+                while ( curs.hasNext() )
+                {
+                    DBObject obj = curs.next();
+                    Object docid = obj.get( JSONKeys.DOCID );
+                    Object name = obj.get( JSONKeys.BODY_FILE );
+                    if ( docid != null && name instanceof String )
+                        files.put( docid.toString(), (String)name );
+                }
+            }
+            finally
+            {
+                curs.close();
+            }
+        }
+        return files;
+    }
+    /**
+     * Write one batch of documents, replacing any with the same docids. 
+     * Documents not yet in the collection are inserted together in one 
+     * unordered request; those already there are upserted one by one, so 
+     * existing data is never removed before its replacement is stored, 
+     * and their GridFS bodies are removed once they are replaced.
+     * @param coll the collection
+     * @param docids the docids of the documents in order
+     * @param batch the documents
+     * @param wc the write concern to use
+     * @param result record the outcome for each docid here
+     * @return the docids that were written
+     * @throws Exception if old body files could not be removed
+     */
+    private ArrayList<String> putBatch( DBCollection coll, 
+        ArrayList<String> docids, ArrayList<DBObject> batch, 
+        WriteConcern wc, BulkResult result ) throws Exception
+    {
+        ArrayList<String> written = new ArrayList<String>();
+        HashSet<String> found = findDocids( coll, docids );
+        ArrayList<String> newIds = new ArrayList<String>();
+        ArrayList<DBObject> newDocs = new ArrayList<DBObject>();
+        ArrayList<String> oldIds = new ArrayList<String>();
+        ArrayList<DBObject> oldDocs = new ArrayList<DBObject>();
+        for ( int i=0;i<docids.size();i++ )
+        {
+            if ( found.contains(docids.get(i)) )
+            {
+                oldIds.add( docids.get(i) );
+                oldDocs.add( batch.get(i) );
+            }
+            else
+            {
+                newIds.add( docids.get(i) );
+                newDocs.add( batch.get(i) );
+            }
+        }
+        if ( newDocs.size() > 0 )
+        {
+            boolean[] hadIds = new boolean[newDocs.size()];
+            for ( int i=0;i<hadIds.length;i++ )
+                hadIds[i] = newDocs.get(i).containsField( JSONKeys._ID );
+            try
+            {
+                coll.insert( newDocs, wc.continueOnErrorForInsert(true) );
+                for ( int i=0;i<newIds.size();i++ )
+                {
+                    result.add( newIds.get(i), BulkResult.OK );
+                    written.add( newIds.get(i) );
+                }
+            }
+            catch ( Exception e )
+            {
+                // the error does not say which failed: write them singly
+                for ( int i=0;i<hadIds.length;i++ )
+                {
+                    // without the _id the insert gave it, if it did
+                    if ( !hadIds[i] )
+                        newDocs.get(i).removeField( JSONKeys._ID );
+                }
+                oldIds.addAll( newIds );
+                oldDocs.addAll( newDocs );
+            }
+        }
+        HashMap<String,String> files = findBodyFilesByDocid( coll, oldIds );
+        ArrayList<String> replaced = new ArrayList<String>();
+        for ( int i=0;i<oldIds.size();i++ )
+        {
+            String docid = oldIds.get(i);
+            try
+            {
+                DBObject query = new BasicDBObject( JSONKeys.DOCID, docid );
+                coll.update( query, oldDocs.get(i), true, false, wc );
+                result.add( docid, BulkResult.OK );
+                written.add( docid );
+                if ( files.containsKey(docid) )
+                    replaced.add( files.get(docid) );
+            }
+            catch ( Exception e )
+            {
+                result.add( docid, e.getMessage() );
+            }
+        }
+        removeBodyFiles( replaced );
+        return written;
+    }
+    /**
+     * PUT a new json file to the database
+     * @param collName the name of the collection
+     * @param json the json to put there
+     * @return the server response
+     */
+    @Override
+    public String addToDb( String collName, String json ) throws DbException
+    {
+        return addToDb( collName, json, null );
+    }
+    /**
+     * PUT a new json file to the database, overriding the write safety
+     * @param collName the name of the collection
+     * @param json the json to put there
+     * @param safety how safe the write must be or null for the default
+     * @return the server response
+     */
+    @Override
+    public String addToDb( String collName, String json, WriteSafety safety ) 
+        throws DbException
+    {
+        try
+        {
+            DBObject doc = (DBObject) JSON.parse(json);
+            connect();
+            DBCollection coll = getCollectionFromName( collName );
+            stampRevision( doc );
+            Object docid = doc.get( JSONKeys.DOCID );
+            if (doc.containsField(JSONKeys._ID) )
+            {
+                Object id = doc.get(JSONKeys._ID);
+                DBObject query = new BasicDBObject( JSONKeys._ID, id );
+                if ( query != null )
+                {
+                    WriteResult result = coll.update( query, doc, true, false,
+                        writeConcern(coll,safety) );
+                    fireChanged( collName, 
+                        (docid!=null)?docid.toString():null );
+                    return result.toString();
+                }
+                else
+                    throw new Exception("Failed to update object "+id);
+            }
+            else
+            {
+                WriteConcern wc = writeConcern( coll, safety );
+                WriteResult result = coll.insert( doc, wc );
+                fireChanged( collName, (docid!=null)?docid.toString():null );
+                // return the new document's id
+                ObjectId id = (ObjectId)doc.get( "_id" );
+                JSONObject jDoc = null;
+                if ( wc.callGetLastError() )
+                    jDoc = (JSONObject)JSONValue.parse(result.toString());
+                if ( jDoc == null )
+                    jDoc = new JSONObject();
+                jDoc.put("_id",id.toString());
+                return jDoc.toJSONString();
+            }
+        }
+        catch ( Exception e )
+        {
+            throw new DbException( e );
+        }
+    }
+    /**
+     * Store a document's body in binary form, in GridFS if it is large. 
+     * A large body is written to a new file before the document is 
+     * changed, and the old file is only removed afterwards.
+     * @param collName the name of the collection
+     * @param docID the docid of the resource 
+     * @param body the raw body, e.g. a gzipped binary MVD
+     * @return whether the document was inserted or updated
+     */
+    @Override
+    public String putBodyToDb( String collName, String docID, byte[] body )
+        throws DbException
+    {
+        return putBodyToDb( collName, docID, body, null );
+    }
+    /**
+     * Store a document's body in binary form, overriding the write safety. 
+     * The swap of bodies must learn the old file's name, so even an 
+     * unacknowledged write waits for the primary; journaled and majority 
+     * writes then wait until the file and the document are that safe.
+     * @param collName the name of the collection
+     * @param docID the docid of the resource 
+     * @param body the raw body, e.g. a gzipped binary MVD
+     * @param safety how safe the write must be or null for the default
+     * @return whether the document was inserted or updated
+     */
+    @Override
+    public String putBodyToDb( String collName, String docID, byte[] body,
+        WriteSafety safety ) throws DbException
+    {
+        DB db = null;
+        try
+        {
+            connect();
+            DBCollection coll = getCollectionFromName( collName );
+            if ( safety == null )
+                safety = policy.getWriteSafety( collName );
+            // keep to one socket so getLastError covers all the writes
+            db = coll.getDB();
+            db.requestStart();
+            BasicDBObject fields = new BasicDBObject();
+            stampRevision( fields );
+            BasicDBObject update = new BasicDBObject( "$set", fields );
+            String name = null;
+            if ( body.length > GRIDFS_THRESHOLD )
+            {
+                // a fresh file, so the old body survives a failed update
+                name = bodyFileName( collName, docID, 
+                    (String)fields.get(JSONKeys.REV) );
+                GridFSInputFile file = getBodies().createFile( body );
+                file.setFilename( name );
+                file.save();
+                bodyFileColls.put( collName, Boolean.TRUE );
+                fields.put( JSONKeys.BODY_FILE, name );
+                update.put( "$unset", new BasicDBObject(JSONKeys.BODY,1) );
+            }
+            else
+            {
+                fields.put( JSONKeys.BODY, body );
+                update.put( "$unset", new BasicDBObject(JSONKeys.BODY_FILE,1) );
+            }
+            DBObject query = new BasicDBObject( JSONKeys.DOCID, docID );
+            DBObject old;
+            try
+            {
+                // swap in the new body and learn the old file in one step
+                old = coll.findAndModify( query, 
+                    new BasicDBObject(JSONKeys.BODY_FILE,1), null, false, 
+                    update, false, true );
+            }
+            catch ( Exception e )
+            {
+                if ( name != null )
+                    getBodies().remove( name );
+                throw e;
+            }
+            if ( safety == WriteSafety.JOURNALED 
+                || safety == WriteSafety.MAJORITY )
+                db.getLastError( toWriteConcern(safety) ).throwOnError();
+            Object oldName = (old==null)?null:old.get( JSONKeys.BODY_FILE );
+            if ( oldName instanceof String && !oldName.equals(name) )
+                getBodies().remove( (String)oldName );
+            fireChanged( collName, docID );
+            return (old==null)?"inserted "+docID:"updated "+docID;
+        }
+        catch ( Exception e )
+        {
+            throw new DbException( e );
+        }
+        finally
+        {
+            if ( db != null )
+                db.requestDone();
+        }
+    }
+    /**
+     * Fetch just the body of a document as bytes
+     * @param collName the name of the collection
+     * @param docID the docid of the resource 
+     * @return the body, possibly gzipped, or null if not found
+     */
+    @Override
+    public byte[] getBodyFromDb( String collName, String docID ) 
+        throws DbException
+    {
+        try
+        {
+            connect();
+            DBCollection coll = getCollectionFromName( collName );
+            DBObject query = new BasicDBObject( JSONKeys.DOCID, docID );
+            BasicDBObject fields = new BasicDBObject( JSONKeys.BODY, 1 );
+            fields.put( JSONKeys.BODY_FILE, 1 );
+            DBObject obj = coll.findOne( query, fields );
+            return (obj!=null)?readBody( obj ):null;
+        }
+        catch ( Exception e )
+        {
+            throw new DbException( e );
+        }
+    }
+    /**
+     * Open the body of a document as a stream. A body in GridFS is 
+     * fetched a chunk at a time as the stream is read.
+     * @param collName the name of the collection
+     * @param docID the docid of the resource 
+     * @return the body, possibly gzipped, or null if not found
+     */
+    @Override
+    public InputStream getBodyStreamFromDb( String collName, String docID ) 
+        throws DbException
+    {
+        try
+        {
+            connect();
+            DBCollection coll = getCollectionFromName( collName );
+            DBObject query = new BasicDBObject( JSONKeys.DOCID, docID );
+            BasicDBObject fields = new BasicDBObject( JSONKeys.BODY, 1 );
+            fields.put( JSONKeys.BODY_FILE, 1 );
+            DBObject obj = coll.findOne( query, fields );
+            if ( obj == null )
+                return null;
+            else if ( obj.get(JSONKeys.BODY_FILE) instanceof String )
+            {
+                GridFSDBFile file = getBodies().findOne( 
+                    (String)obj.get(JSONKeys.BODY_FILE) );
+                return (file==null)?null:file.getInputStream();
+            }
+            else
+            {
+                byte[] data = readBody( obj );
+                return (data==null)?null:new ByteArrayInputStream( data );
+            }
+        }
+        catch ( Exception e )
+        {
+            throw new DbException( e );
+        }
+    }
+    /**
+     * Remove a document from the database
+     * @param collName name of the collection
+     * @param docID the docid of the resource 
+     * @param json the json to put there
+     * @return the server response
+     */
+    @Override
+    public String removeFromDb( String collName, String docID ) 
+        throws DbException
+    {
+        return removeFromDbByField( collName, JSONKeys.DOCID, docID );
+    }
+    /**
+     * Remove a document from the database, overriding the write safety
+     * @param collName name of the collection
      * @param docID the docid of the resource 
-     * @param json the json to put there
+     * @param safety how safe the removal must be or null for the default
      * @return the server response
      */
     @Override
-    public String putToDb( String collName, String docID, String json ) 
-        throws DbException
+    public String removeFromDb( String collName, String docID, 
+        WriteSafety safety ) throws DbException
     {
         try
         {
-            DBObject doc = (DBObject) JSON.parse(json);
-            doc.put( JSONKeys.DOCID, docID );
             connect();
             DBCollection coll = getCollectionFromName( collName );
             DBObject query = new BasicDBObject( JSONKeys.DOCID, docID );
-            WriteResult result = coll.update( query, doc, true, false );
-            //return removeFromDb( path );
+            ArrayList<String> files = findBodyFiles( coll, query );
+            WriteResult result = coll.remove( query, 
+                writeConcern(coll,safety) );
+            removeBodyFiles( files );
+            fireChanged( collName, docID );
             return result.toString();
         }
         catch ( Exception e )
@@ -229,99 +1488,83 @@ public class MongoConnection extends Connection
         }
     }
     /**
-     * PUT a json file to the database using dbase, docid and version
-     * @param collName the name of the collection
-     * @param dbase the name of the database 
-     * @param docid the document identifier
-     * @param version the version of the document
-     * @param json the json to put there
-     * @return the server response
+     * Remove many documents from the database in batches
+     * @param collName name of the collection
+     * @param docids the docids of the documents to remove
+     * @return the outcome for each docid
+     * @throws DbException 
      */
     @Override
-    public String putToDb( String collName, String dbase, 
-        String docid, String version, String json ) throws DbException
+    public BulkResult removeManyFromDb( String collName, 
+        Collection<String> docids ) throws DbException
     {
-        try
-        {
-            DBObject doc = (DBObject) JSON.parse(json);
-            doc.put( JSONKeys.DOCID, docid );
-            connect();
-            DBObject query = getThreeFieldQuery(JSONKeys.DBASE,dbase,
-                JSONKeys.DOCID,docid,JSONKeys.VERSION1, version);
-            DBCollection coll = getCollectionFromName( collName );
-            WriteResult result = coll.update( query, doc, true, false );
-            //return removeFromDb( path );
-            return result.toString();
-        }
-        catch ( Exception e )
-        {
-            throw new DbException( e );
-        }
+        return removeManyFromDb( collName, docids, null );
     }
     /**
-     * PUT a new json file to the database
-     * @param collName the name of the collection
-     * @param json the json to put there
-     * @return the server response
+     * Remove many documents from the database, overriding the write safety
+     * @param collName name of the collection
+     * @param docids the docids of the documents to remove
+     * @param safety how safe the removal must be or null for the default
+     * @return the outcome for each docid
+     * @throws DbException 
      */
     @Override
-    public String addToDb( String collName, String json ) throws DbException
+    public BulkResult removeManyFromDb( String collName, 
+        Collection<String> docids, WriteSafety safety ) throws DbException
     {
         try
         {
-            DBObject doc = (DBObject) JSON.parse(json);
             connect();
             DBCollection coll = getCollectionFromName( collName );
-            if (doc.containsField(JSONKeys._ID) )
+            BulkResult result = new BulkResult();
+            ArrayList<String> batch = new ArrayList<String>();
+            Iterator<String> iter = docids.iterator();
+            while ( iter.hasNext() )
             {
-                Object id = doc.get(JSONKeys._ID);
-                DBObject query = new BasicDBObject( JSONKeys._ID, id );
-                if ( query != null )
+                batch.add( iter.next() );
+                if ( batch.size() == batchSize || !iter.hasNext() )
                 {
-                    WriteResult result = coll.update( query, doc, true, false );
-                    return result.toString();
+                    HashSet<String> found = findDocids( coll, batch );
+                    DBObject query = new BasicDBObject( JSONKeys.DOCID,
+                        new BasicDBObject("$in",batch) );
+                    ArrayList<String> files = findBodyFiles( coll, query );
+                    coll.remove( query, writeConcern(coll,safety) );
+                    removeBodyFiles( files );
+                    for ( int i=0;i<batch.size();i++ )
+                    {
+                        String docid = batch.get(i);
+                        if ( found.contains(docid) )
+                        {
+                            result.add( docid, BulkResult.OK );
+                            fireChanged( collName, docid );
+                        }
+                        else
+                            result.add( docid, BulkResult.NOT_FOUND );
+                    }
+                    batch.clear();
                 }
-                else
-                    throw new Exception("Failed to update object "+id);
-            }
-            else
-            {
-                WriteResult result = coll.insert( doc, WriteConcern.ACKNOWLEDGED );
-                // return the new document's id
-                ObjectId id = (ObjectId)doc.get( "_id" );
-                JSONObject jDoc = (JSONObject)JSONValue.parse(result.toString());
-                jDoc.put("_id",id.toString());
-                return jDoc.toJSONString();
             }
+            return result;
         }
         catch ( Exception e )
         {
             throw new DbException( e );
         }
     }
-    /**
-     * Remove a document from the database
-     * @param collName name of the collection
-     * @param docID the docid of the resource 
-     * @param json the json to put there
-     * @return the server response
-     */
-    @Override
-    public String removeFromDb( String collName, String docID ) 
-        throws DbException
-    {
-        return removeFromDbByField( collName, JSONKeys.DOCID, docID );
-    }
     private String removeFromDbByThreeFields( String collName, String field1, 
         String value1, String field2, String value2, String field3, 
-        String value3 ) throws DbException
+        String value3, WriteSafety safety ) throws DbException
     {
         try
         {
             connect();
             DBCollection coll = getCollectionFromName( collName );
             DBObject query = getThreeFieldQuery(field1,value1,field2,value2,field3,value3);
-            WriteResult result = coll.remove( query );
+            ArrayList<String> files = findBodyFiles( coll, query );
+            WriteResult result = coll.remove( query, 
+                writeConcern(coll,safety) );
+            removeBodyFiles( files );
+            fireChanged( collName, null );
             if ( result != null )
                 return result.toString();
             else
@@ -342,9 +1585,24 @@ public class MongoConnection extends Connection
     @Override
     public String removeFromDb( String collName, String dbase, String docID, 
         String version ) throws DbException
+    {
+        return removeFromDb( collName, dbase, docID, version, null );
+    }
+    /**
+     * Remove a document from the database, overriding the write safety
+     * @param collName name of the collection
+     * @param dbase the name of the database
+     * @param docID the docid of the resource 
+     * @param version the version of the document
+     * @param safety how safe the removal must be or null for the default
+     * @return the server response
+     */
+    @Override
+    public String removeFromDb( String collName, String dbase, String docID, 
+        String version, WriteSafety safety ) throws DbException
     {
         return removeFromDbByThreeFields( collName, JSONKeys.DBASE, dbase,
-            JSONKeys.DOCID, docID, JSONKeys.VERSION1, version );
+            JSONKeys.DOCID, docID, JSONKeys.VERSION1, version, safety );
     }
     /**
      * Remove a document from the database by a unique field value
@@ -356,6 +1614,21 @@ public class MongoConnection extends Connection
     @Override
     public String removeFromDbByField( String collName, String field, 
         String value ) throws DbException
+    {
+        return removeFromDbByField( collName, field, value, null );
+    }
+    /**
+     * Remove a document from the database by a unique field value, 
+     * overriding the write safety
+     * @param collName name of the collection
+     * @param field the name of the field 
+     * @param value the value of the field
+     * @param safety how safe the removal must be or null for the default
+     * @return the server response
+     */
+    @Override
+    public String removeFromDbByField( String collName, String field, 
+        String value, WriteSafety safety ) throws DbException
     {
         try
         {
@@ -366,7 +1639,11 @@ public class MongoConnection extends Connection
             if ( field.equals(JSONKeys._ID) )
                 obj = new ObjectId(value);
             DBObject query = new BasicDBObject( field, obj );
-            WriteResult result = coll.remove( query );
+            ArrayList<String> files = findBodyFiles( coll, query );
+            WriteResult result = coll.remove( query, 
+                writeConcern(coll,safety) );
+            removeBodyFiles( files );
+            fireChanged( collName, field.equals(JSONKeys.DOCID)?value:null );
             return result.toString();
         }
         catch ( Exception e )
@@ -382,17 +1659,39 @@ public class MongoConnection extends Connection
      * @return the result
      * @throws DbException 
      */
+    @Override
     public String removeFromDbByExpr( String collName, String key, String expr )
         throws DbException
+    {
+        return removeFromDbByExpr( collName, key, expr, null );
+    }
+    /**
+     * Remove documents that match a regular expression, overriding the 
+     * write safety
+     * @param collName the collection to remove from
+     * @param key the key field to match
+     * @param expr the regular expression for key's values
+     * @param safety how safe the removal must be or null for the default
+     * @return the result
+     * @throws DbException 
+     */
+    @Override
+    public String removeFromDbByExpr( String collName, String key, 
+        String expr, WriteSafety safety ) throws DbException
     {
         try
         {
+            connect();
             DBCollection coll = getCollectionFromName( collName );
             if ( coll != null )
             {
                 BasicDBObject q = new BasicDBObject();
                 q.put(key, Pattern.compile(expr) );
-                WriteResult result = coll.remove( q );
+                ArrayList<String> files = findBodyFiles( coll, q );
+                WriteResult result = coll.remove( q, 
+                    writeConcern(coll,safety) );
+                removeBodyFiles( files );
+                fireChanged( collName, null );
                 return result.toString();
             }
             else
@@ -404,47 +1703,48 @@ public class MongoConnection extends Connection
         }
     }
     /**
-     * Get a list of docIDs or file names corresponding to the regex expr
+     * Convert a key value from the database to a String
+     * @param kId the value or null
+     * @return its string form or null
+     */
+    static String keyToString( Object kId )
+    {
+        if ( kId instanceof ObjectId )
+            return ((ObjectId)kId).toStringMongod();
+        else if ( kId != null )
+            return kId.toString();
+        else
+            return null;
+    }
+    /**
+     * Open a cursor over one key of every document a query matches. Only 
+     * that key is sent back by the server.
      * @param collName the collection to query
-     * @param expr the regular expression to match against docid
+     * @param query the query to run
      * @param key the key to retrieve for each matching document
-     * @return an array of matching docids, which may be empty
+     * @param sortKey the key to sort on or null
+     * @return a live cursor over the key values
+     * @throws DbException 
      */
-    @Override
-    public String[] listDocuments( String collName, String expr, String key )
-        throws DbException
+    private DbCursor<String> openKeys( String collName, DBObject query, 
+        final String key, String sortKey ) throws DbException
     {
         try
         {
-            try
-            {
-                connect();
-            }
-            catch ( Exception e )
-            {
-                throw new DbException( e );
-            }
+            connect();
             DBCollection coll = getCollectionFromName( collName );
-            if ( coll != null )
+            DBCursor curs = coll.find( query, new BasicDBObject(key,1) )
+                .batchSize( batchSize );
+            if ( sortKey != null )
+                curs.sort( new BasicDBObject(sortKey,1) );
+            return new MongoCursor<String>( curs )
             {
-                BasicDBObject q = new BasicDBObject();
-                q.put(JSONKeys.DOCID, Pattern.compile(expr) );
-                DBCursor curs = coll.find( q );
-                ArrayList<String> docids = new ArrayList<String>();
-                Iterator<DBObject> iter = curs.iterator();
-                int i = 0;
-                while ( iter.hasNext() )
+                @Override
+                String convert( DBObject obj )
                 {
-                    Object kId = iter.next().get(key);
-                    if ( kId != null )
-                        docids.add( kId.toString() );
+                    return keyToString( obj.get(key) );
                 }
-                String[] array = new String[docids.size()];
-                docids.toArray( array );
-                return array;
-            }
-            else
-                throw new DbException("collection "+collName+" not found");
+            };
         }
         catch ( Exception e )
         {
@@ -452,50 +1752,210 @@ public class MongoConnection extends Connection
         }
     }
     /**
-     * List all the documents in a Mongo collection
-     * @param collName the name of the collection
-     * @param key the document key to retrieve by
-     * @return a String array of document keys
+     * Read one key from every document a query matches, in a single pass
+     * @param collName the collection to query
+     * @param query the query to run
+     * @param key the key to retrieve for each matching document
+     * @param sortKey the key to sort on or null
+     * @return an array of key values, which may be empty
+     * @throws DbException 
+     */
+    private String[] listKeys( String collName, DBObject query, String key,
+        String sortKey ) throws DbException
+    {
+        try ( DbCursor<String> curs = openKeys(collName,query,key,sortKey) )
+        {
+            ArrayList<String> keys = new ArrayList<String>();
+            while ( curs.hasNext() )
+                keys.add( curs.next() );
+            String[] array = new String[keys.size()];
+            keys.toArray( array );
+            return array;
+        }
+        catch ( DbException dbe )
+        {
+            throw dbe;
+        }
+        catch ( Exception e )
+        {
+            throw new DbException( e );
+        }
+    }
+    /**
+     * Iterate over one key of every document in a collection
+     * @param collName the collection to read
+     * @param key the key to retrieve for each document
+     * @return a live cursor over the key values
      * @throws DbException 
      */
     @Override
-    public String[] listCollectionByKey( String collName, String key ) 
+    public DbCursor<String> iterateCollection( String collName, String key )
         throws DbException
+    {
+        return openKeys( collName, new BasicDBObject(), key, null );
+    }
+    /**
+     * Iterate over one key of each document whose docid matches a regex
+     * @param collName the collection to query
+     * @param expr the regular expression to match against docid
+     * @param key the key to retrieve for each matching document
+     * @return a live cursor over the key values
+     * @throws DbException 
+     */
+    @Override
+    public DbCursor<String> iterateDocuments( String collName, String expr, 
+        String key ) throws DbException
+    {
+        BasicDBObject q = new BasicDBObject();
+        q.put(JSONKeys.DOCID, Pattern.compile(expr) );
+        return openKeys( collName, q, key, null );
+    }
+    /**
+     * Iterate over one key of each document whose docid has a prefix
+     * @param collName the collection to query
+     * @param prefix the literal docid prefix
+     * @param key the key to retrieve for each matching document
+     * @return a live cursor over the key values in docid order
+     * @throws DbException 
+     */
+    @Override
+    public DbCursor<String> iterateDocumentsByPrefix( String collName, 
+        String prefix, String key ) throws DbException
+    {
+        return openKeys( collName, getPrefixQuery(prefix), key, 
+            JSONKeys.DOCID );
+    }
+    /**
+     * Iterate over the whole of every document in a collection
+     * @param collName the collection to read
+     * @return a live cursor over the documents as JSON strings
+     * @throws DbException 
+     */
+    @Override
+    public DbCursor<String> iterateAll( String collName ) throws DbException
     {
         try
         {
             connect();
+            DBCollection coll = getCollectionFromName( collName );
+            DBCursor curs = coll.find().batchSize( batchSize );
+            return new MongoCursor<String>( curs )
+            {
+                @Override
+                String convert( DBObject obj )
+                {
+                    return toTextBody(obj).toString();
+                }
+            };
         }
         catch ( Exception e )
         {
             throw new DbException( e );
         }
-        DBCollection coll = getCollectionFromName( collName );
-        BasicDBObject keys = new BasicDBObject();
-        keys.put( key, 1 );
-        DBCursor cursor = coll.find( new BasicDBObject(), keys );
-        if ( cursor.length() > 0 )
+    }
+    /**
+     * Get a list of docIDs or file names corresponding to the regex expr
+     * @param collName the collection to query
+     * @param expr the regular expression to match against docid
+     * @param key the key to retrieve for each matching document
+     * @return an array of matching docids, which may be empty
+     */
+    @Override
+    public String[] listDocuments( String collName, String expr, String key )
+        throws DbException
+    {
+        BasicDBObject q = new BasicDBObject();
+        q.put(JSONKeys.DOCID, Pattern.compile(expr) );
+        return listKeys( collName, q, key, null );
+    }
+    /**
+     * Build a query matching every docid that starts with a prefix. A 
+     * range on docid uses the index, where an unanchored regex would not.
+     * The bound is worked out on code points, since Mongo orders strings 
+     * by their UTF-8 bytes, which is code point order, not UTF-16 order.
+     * @param prefix the literal docid prefix, may be empty
+     * @return the query object
+     */
+    static DBObject getPrefixQuery( String prefix )
+    {
+        BasicDBObject q = new BasicDBObject();
+        if ( prefix != null && prefix.length() > 0 )
+        {
+            String upper = getUpperBound( prefix );
+            if ( upper != null )
+            {
+                BasicDBObject range = new BasicDBObject( "$gte", prefix );
+                range.put( "$lt", upper );
+                q.put( JSONKeys.DOCID, range );
+            }
+            else
+                q.put( JSONKeys.DOCID, 
+                    Pattern.compile("^"+Pattern.quote(prefix)) );
+        }
+        return q;
+    }
+    /**
+     * Get the least string greater than all those starting with a prefix
+     * @param prefix the prefix
+     * @return the bound, or null if there is none or the prefix is not 
+     * well-formed UTF-16
+     */
+    static String getUpperBound( String prefix )
+    {
+        for ( int i=0;i<prefix.length();i++ )
         {
-            String[] docs = new String[cursor.length()];
-            Iterator<DBObject> iter = cursor.iterator();
-            int i = 0;
-            while ( iter.hasNext() )
+            char c = prefix.charAt( i );
+            if ( Character.isHighSurrogate(c) && i+1 < prefix.length()
+                && Character.isLowSurrogate(prefix.charAt(i+1)) )
+                i++;
+            else if ( Character.isSurrogate(c) )
+                return null;
+        }
+        int i = prefix.length();
+        while ( i > 0 )
+        {
+            int cp = prefix.codePointBefore( i );
+            int start = i-Character.charCount( cp );
+            if ( cp < Character.MAX_CODE_POINT )
             {
-                DBObject dbObj = iter.next();
-                Object obj = dbObj.get( key );
-                if ( key.equals(JSONKeys._ID) )
-                {
-                    ObjectId id = (ObjectId)dbObj.get(JSONKeys._ID);
-                    obj = id.toStringMongod();
-                    docs[i++] = (String)obj;
-                }
-                else
-                    docs[i++] = obj.toString();
+                int next = cp+1;
+                // surrogate code points never occur in a string
+                if ( next == Character.MIN_SURROGATE )
+                    next = Character.MAX_SURROGATE+1;
+                return prefix.substring( 0, start )
+                    +new String( Character.toChars(next) );
             }
-            return docs;
+            i = start;
         }
-        else
-            return new String[0];
+        return null;
+    }
+    /**
+     * Get a list of keys for documents whose docids start with a prefix
+     * @param collName the collection to query
+     * @param prefix the literal docid prefix, e.g. "english/harpur/h642"
+     * @param key the key to retrieve for each matching document
+     * @return an array of key values in docid order, which may be empty
+     * @throws DbException 
+     */
+    @Override
+    public String[] listDocumentsByPrefix( String collName, String prefix, 
+        String key ) throws DbException
+    {
+        return listKeys( collName, getPrefixQuery(prefix), key, 
+            JSONKeys.DOCID );
+    }
+    /**
+     * List all the documents in a Mongo collection
+     * @param collName the name of the collection
+     * @param key the document key to retrieve by
+     * @return a String array of document keys
+     * @throws DbException 
+     */
+    @Override
+    public String[] listCollectionByKey( String collName, String key ) 
+        throws DbException
+    {
+        return listKeys( collName, new BasicDBObject(), key, null );
     }
     /**
      * List all the documents in a Mongo collection
@@ -506,29 +1966,8 @@ public class MongoConnection extends Connection
     @Override
     public String[] listCollection( String collName ) throws DbException
     {
-        try
-        {
-            connect();
-        }
-        catch ( Exception e )
-        {
-            throw new DbException( e );
-        }
-        DBCollection coll = getCollectionFromName( collName );
-        BasicDBObject keys = new BasicDBObject();
-        keys.put( JSONKeys.DOCID, 1 );
-        DBCursor cursor = coll.find( new BasicDBObject(), keys );
-        if ( cursor.length() > 0 )
-        {
-            String[] docs = new String[cursor.length()];
-            Iterator<DBObject> iter = cursor.iterator();
-            int i = 0;
-            while ( iter.hasNext() )
-                docs[i++] = (String)iter.next().get( JSONKeys.DOCID );
-            return docs;
-        }
-        else
-            return new String[0];
+        return listKeys( collName, new BasicDBObject(), JSONKeys.DOCID, 
+            null );
     }
     /**
      * Get the metadata as a string
@@ -569,6 +2008,23 @@ public class MongoConnection extends Connection
      */
     public void updateByField( String coll, String findField, 
         Object findValue, String setField, Object setValue ) throws DbException
+    {
+        updateByField( coll, findField, findValue, setField, setValue, null );
+    }
+    /**
+     * Update one field of a database document, overriding the write safety
+     * @param coll the collection the document is in
+     * @param findField the field to look for
+     * @param findValue the field value to search for
+     * @param setField the field to set
+     * @param setValue the new field value
+     * @param safety how safe the write must be or null for the default
+     * @throws DbException 
+     */
+    @Override
+    public void updateByField( String coll, String findField, 
+        Object findValue, String setField, Object setValue, 
+        WriteSafety safety ) throws DbException
     {
         try
         {
@@ -576,11 +2032,15 @@ public class MongoConnection extends Connection
             DBCollection collection = getCollectionFromName( coll );
             if ( findField.equals(JSONKeys._ID) )
                 findValue = new ObjectId((String)findValue);
-            BasicDBObject update = new BasicDBObject(
-                "$set", new BasicDBObject(setField,setValue));
+            BasicDBObject fields = new BasicDBObject(setField,setValue);
+            stampRevision( fields );
+            BasicDBObject update = new BasicDBObject( "$set", fields );
             BasicDBObject query = new BasicDBObject();
             query.put(findField,findValue);
-            WriteResult res = collection.update(query, update);
+            WriteResult res = collection.update( query, update, false, false,
+                writeConcern(collection,safety) );
+            fireChanged( coll, findField.equals(JSONKeys.DOCID)
+                ?findValue.toString():null );
         }
         catch ( Exception e )
         {
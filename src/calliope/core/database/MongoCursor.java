@@ -0,0 +1,79 @@
+/* This file is part of calliope.
+ *
+ *  calliope is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  calliope is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with calliope.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package calliope.core.database;
+
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import java.util.NoSuchElementException;
+
+/**
+ * A DbCursor backed by a live MongoDB cursor. Subclasses convert each 
+ * document into a result; documents they convert to null are skipped.
+ * @author desmond
+ * @param <T> the type of each result
+ */
+abstract class MongoCursor<T> implements DbCursor<T>
+{
+    DBCursor cursor;
+    /** the next result, already read, or null */
+    T next;
+    boolean closed;
+    MongoCursor( DBCursor cursor )
+    {
+        this.cursor = cursor;
+    }
+    /**
+     * Convert a document into a result
+     * @param obj the document from the database
+     * @return the result or null to skip the document
+     */
+    abstract T convert( DBObject obj );
+    @Override
+    public boolean hasNext()
+    {
+        while ( next == null && !closed )
+        {
+            if ( cursor.hasNext() )
+                next = convert( cursor.next() );
+            else
+                close();
+        }
+        return next != null;
+    }
+    @Override
+    public T next()
+    {
+        if ( !hasNext() )
+            throw new NoSuchElementException();
+        T item = next;
+        next = null;
+        return item;
+    }
+    @Override
+    public void remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+    @Override
+    public void close()
+    {
+        if ( !closed )
+        {
+            closed = true;
+            cursor.close();
+        }
+    }
+}
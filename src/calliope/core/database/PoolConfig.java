@@ -0,0 +1,105 @@
+/* This file is part of calliope.
+ *
+ *  calliope is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  calliope is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with calliope.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package calliope.core.database;
+
+/**
+ * Limits for the pool of sockets a Connection keeps open to the database
+ * @author desmond
+ */
+public class PoolConfig
+{
+    /** default maximum number of sockets per host */
+    public static int DEFAULT_POOL_SIZE = 20;
+    /** default number of waiting threads allowed per socket */
+    public static int DEFAULT_WAIT_QUEUE_MULTIPLE = 5;
+    /** default time in milliseconds to wait for a free socket */
+    public static int DEFAULT_WAIT_QUEUE_TIMEOUT = 10000;
+    /** default time in milliseconds to wait for a new socket to connect */
+    public static int DEFAULT_CONNECT_TIMEOUT = 10000;
+    /** default time in milliseconds to wait for a reply (0 = forever) */
+    public static int DEFAULT_SOCKET_TIMEOUT = 0;
+    int poolSize;
+    int waitQueueMultiple;
+    int waitQueueTimeout;
+    int connectTimeout;
+    int socketTimeout;
+    /**
+     * Create a pool configuration with the default limits
+     */
+    public PoolConfig()
+    {
+        this( DEFAULT_POOL_SIZE, DEFAULT_WAIT_QUEUE_MULTIPLE,
+            DEFAULT_WAIT_QUEUE_TIMEOUT, DEFAULT_CONNECT_TIMEOUT,
+            DEFAULT_SOCKET_TIMEOUT );
+    }
+    /**
+     * Create a pool configuration
+     * @param poolSize the maximum number of open sockets per host
+     * @param waitQueueMultiple threads allowed to wait per socket
+     * @param waitQueueTimeout milliseconds to wait for a free socket
+     * @param connectTimeout milliseconds to wait while connecting
+     * @param socketTimeout milliseconds to wait for a reply (0 = forever)
+     */
+    public PoolConfig( int poolSize, int waitQueueMultiple,
+        int waitQueueTimeout, int connectTimeout, int socketTimeout )
+    {
+        this.poolSize = poolSize;
+        this.waitQueueMultiple = waitQueueMultiple;
+        this.waitQueueTimeout = waitQueueTimeout;
+        this.connectTimeout = connectTimeout;
+        this.socketTimeout = socketTimeout;
+    }
+    /**
+     * Get the maximum number of sockets open at once per host
+     * @return the pool size
+     */
+    public int getPoolSize()
+    {
+        return poolSize;
+    }
+    /**
+     * Get the number of threads allowed to wait for each socket
+     * @return a multiplier of the pool size
+     */
+    public int getWaitQueueMultiple()
+    {
+        return waitQueueMultiple;
+    }
+    /**
+     * Get the time to wait for a socket to become free
+     * @return the time in milliseconds
+     */
+    public int getWaitQueueTimeout()
+    {
+        return waitQueueTimeout;
+    }
+    /**
+     * Get the time to wait for a new socket to connect
+     * @return the time in milliseconds
+     */
+    public int getConnectTimeout()
+    {
+        return connectTimeout;
+    }
+    /**
+     * Get the time to wait for a database reply
+     * @return the time in milliseconds, 0 meaning forever
+     */
+    public int getSocketTimeout()
+    {
+        return socketTimeout;
+    }
+}
@@ -0,0 +1,32 @@
+/* This file is part of calliope.
+ *
+ *  calliope is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  calliope is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with calliope.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package calliope.core.database;
+
+/**
+ * How sure a write must be before it returns, from fastest to safest
+ * @author desmond
+ */
+public enum WriteSafety 
+{
+    /** don't wait for the server at all */
+    UNACKNOWLEDGED,
+    /** wait for the primary to accept the write */
+    ACKNOWLEDGED,
+    /** wait for the primary to write it to its journal */
+    JOURNALED,
+    /** wait for a majority of the replica set to accept it */
+    MAJORITY;
+}
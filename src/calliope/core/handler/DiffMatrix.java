@@ -0,0 +1,205 @@
+/*
+ * This file is part of calliope.core.
+ *
+ *  calliope.core is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  calliope.core is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with calliope.core.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2015
+ */
+
+package calliope.core.handler;
+
+import edu.luc.nmerge.mvd.MVD;
+import edu.luc.nmerge.mvd.Pair;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Compute the same matrix of differences between versions as 
+ * MVD.computeDiffMatrix, but with the rows shared out between the 
+ * threads of a ForkJoinPool, and with a timeout and cancellation.
+ * @author desmond
+ */
+public class DiffMatrix 
+{
+    /** how often, in pairs, each task checks whether it was cancelled */
+    static int CHECK_INTERVAL = 1024;
+    static ForkJoinPool pool;
+    static int maxParallelism = Runtime.getRuntime().availableProcessors();
+    MVD mvd;
+    volatile boolean cancelled;
+    ForkJoinTask<Void> task;
+    /**
+     * Set the most threads any diff matrix computation may use. This only 
+     * takes effect before the first computation.
+     * @param parallelism the maximum number of threads
+     */
+    public static synchronized void setMaxParallelism( int parallelism )
+    {
+        if ( pool == null && parallelism > 0 )
+            maxParallelism = parallelism;
+    }
+    static synchronized ForkJoinPool getPool()
+    {
+        if ( pool == null )
+            pool = new ForkJoinPool( maxParallelism );
+        return pool;
+    }
+    /**
+     * Prepare to compute the diff matrix of an MVD
+     * @param mvd the fully decoded MVD
+     */
+    public DiffMatrix( MVD mvd )
+    {
+        this.mvd = mvd;
+    }
+    /**
+     * Compute the rows of the matrix that one task owns
+     */
+    class Rows extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+        int offset;
+        int stride;
+        int[][] diffs;
+        int[] lengths;
+        Rows( int offset, int stride, int[][] diffs )
+        {
+            this.offset = offset;
+            this.stride = stride;
+            this.diffs = diffs;
+        }
+        @Override
+        protected void compute()
+        {
+            int n = diffs.length;
+            lengths = new int[n];
+            int[][] lastI = new int[n][];
+            int[][] lastJ = new int[n][];
+            for ( int i=offset;i<n;i+=stride )
+            {
+                lastI[i] = new int[n];
+                lastJ[i] = new int[n];
+            }
+            ArrayList<Pair> pairs = mvd.getPairs();
+            for ( int k=0;k<pairs.size();k++ )
+            {
+                if ( k % CHECK_INTERVAL == 0 && cancelled )
+                    throw new CancellationException();
+                Pair p = pairs.get( k );
+                BitSet bs = p.versions;
+                int len = p.length();
+                // every row in the pair sees the lengths before the pair
+                for ( int i=bs.nextSetBit(1);i>=1;i=bs.nextSetBit(i+1) )
+                {
+                    if ( i % stride == offset )
+                    {
+                        int[] row = diffs[i];
+                        int[] rowI = lastI[i];
+                        int[] rowJ = lastJ[i];
+                        for ( int j=bs.nextSetBit(i);j>=1;j=bs.nextSetBit(j+1) )
+                        {
+                            row[j] += Math.max( lengths[i]-rowI[j], 
+                                lengths[j]-rowJ[j] );
+                            rowI[j] = lengths[i]+len;
+                            rowJ[j] = lengths[j]+len;
+                        }
+                    }
+                }
+                for ( int i=bs.nextSetBit(1);i>=1;i=bs.nextSetBit(i+1) )
+                    lengths[i] += len;
+            }
+        }
+    }
+    /**
+     * Compute the diff matrix
+     * @param parallelism the number of tasks to split the rows between
+     * @param timeout milliseconds to wait for the result, 0 for ever
+     * @return the matrix of differences between each pair of versions
+     * @throws TimeoutException if the timeout expired first
+     * @throws InterruptedException if the calling thread was interrupted
+     * @throws CancellationException if cancel was called
+     */
+    public double[][] compute( int parallelism, long timeout ) 
+        throws TimeoutException, InterruptedException
+    {
+        final int n = mvd.numVersions()+1;
+        final int[][] diffs = new int[n][n];
+        int numTasks = Math.max( 1, Math.min(parallelism, n-1) );
+        final Rows[] rows = new Rows[numTasks];
+        for ( int t=0;t<numTasks;t++ )
+            rows[t] = new Rows( t, numTasks, diffs );
+        synchronized ( this )
+        {
+            if ( cancelled )
+                throw new CancellationException();
+            task = getPool().submit( new RecursiveAction() {
+                @Override
+                protected void compute()
+                {
+                    invokeAll( rows );
+                }
+            } );
+        }
+        try
+        {
+            if ( timeout > 0 )
+                task.get( timeout, TimeUnit.MILLISECONDS );
+            else
+                task.get();
+        }
+        catch ( TimeoutException | InterruptedException e )
+        {
+            cancel();
+            throw e;
+        }
+        catch ( ExecutionException e )
+        {
+            if ( e.getCause() instanceof CancellationException )
+                throw (CancellationException)e.getCause();
+            else
+                throw new RuntimeException( e.getCause() );
+        }
+        // each row was filled above the diagonal: mirror it
+        for ( int i=1;i<n;i++ )
+            for ( int j=i+1;j<n;j++ )
+                diffs[j][i] = diffs[i][j];
+        int[] lengths = rows[0].lengths;
+        double[][] result = new double[n-1][n-1];
+        for ( int i=1;i<n;i++ )
+        {
+            for ( int j=1;j<n;j++ )
+            {
+                double max = Math.max( lengths[i], lengths[j] )-1;
+                result[i-1][j-1] = diffs[i][j]/max;
+            }
+        }
+        return result;
+    }
+    /**
+     * Stop a computation in progress, which will then throw a 
+     * CancellationException
+     */
+    public synchronized void cancel()
+    {
+        cancelled = true;
+        if ( task != null )
+            task.cancel( true );
+    }
+}
@@ -17,10 +17,20 @@
  */
 
 package calliope.core.handler;
+import edu.luc.nmerge.exception.MVDException;
 import edu.luc.nmerge.mvd.MVD;
 import edu.luc.nmerge.mvd.MVDFile;
+import edu.luc.nmerge.mvd.Pair;
 import calliope.core.constants.JSONKeys;
+import calliope.core.database.Connector;
+import calliope.core.exception.DbException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
 import org.json.simple.JSONObject;
 import org.json.simple.JSONArray;
 /**
@@ -30,7 +40,29 @@ import org.json.simple.JSONArray;
  */
 public class EcdosisMVD 
 {
+    /** a reasonable number of base chars per table when chunking */
+    public static int TABLE_CHUNK = 16*1024;
+    /** the fully decoded MVD, or null until it is first needed */
     MVD mvd;
+    /** the MVD's group and version tables only, read first */
+    MVD header;
+    /** true if this is an MVD, whether or not it is decoded yet */
+    boolean isMVD;
+    /** the undecoded text body, if read from the document */
+    String body;
+    /** the undecoded binary body, if fetched */
+    byte[] data;
+    /** the collection the document came from, if cached */
+    String coll;
+    /** the document, for fetching its body when needed */
+    JSONObject doc;
+    /** the docid and revision of the document, if cached */
+    String docid;
+    String rev;
+    /** lookup of versions by name, built or fetched on first use */
+    VersionIndex index;
+    /** versions already reconstructed, keyed by vid */
+    HashMap<Integer,String> versions;
     /** the default or single version */
     String version1;
     String format;
@@ -45,15 +77,177 @@ public class EcdosisMVD
      */
     public EcdosisMVD( JSONObject doc )
     {
-        String body = (String)doc.get(JSONKeys.BODY);
+        Object body = doc.get(JSONKeys.BODY);
         this.format = (String)doc.get(JSONKeys.FORMAT);
         if ( body != null && format != null )
         {
             if ( format.startsWith("MVD") )
-                this.mvd = MVDFile.internalise( body );
+            {
+                if ( body instanceof byte[] )
+                    this.data = (byte[])body;
+                else
+                    this.body = (String)body;
+                this.isMVD = true;
+            }
             else
-                this.text = body;
+                this.text = (String)body;
         }
+        readFields( doc );
+    }
+    /**
+     * Initialise from a document, reusing a cached MVD if it is unchanged
+     * @param coll the collection it came from
+     * @param doc the JSON document from the database, its body optional 
+     * if the document has a binary body
+     * @throws DbException if a missing body could not be fetched
+     */
+    public EcdosisMVD( String coll, JSONObject doc ) throws DbException
+    {
+        this.format = (String)doc.get(JSONKeys.FORMAT);
+        if ( format != null )
+        {
+            if ( format.startsWith("MVD") )
+            {
+                this.coll = coll;
+                this.doc = doc;
+                this.docid = (String)doc.get(JSONKeys.DOCID);
+                // without a _rev the body is the only way to tell revisions
+                if ( !doc.containsKey(JSONKeys.REV) 
+                    && !doc.containsKey(JSONKeys.BODY) )
+                    fetchBody();
+                this.rev = MVDCache.getRevision( doc );
+                Object b = doc.get(JSONKeys.BODY);
+                if ( b instanceof byte[] )
+                    this.data = (byte[])b;
+                else
+                    this.body = (String)b;
+                this.isMVD = true;
+                this.mvd = MVDCache.getShared().getCached( coll, doc );
+            }
+            else
+                this.text = (String)doc.get(JSONKeys.BODY);
+        }
+        readFields( doc );
+    }
+    /**
+     * Read the body of a document that was fetched without it
+     * @throws DbException if the database could not be read
+     */
+    private void fetchBody() throws DbException
+    {
+        // as text or bytes, just as a whole read would give it
+        JSONObject jObj = Connector.getConnection().getObjectFromDb( 
+            coll, docid, JSONKeys.BODY );
+        if ( jObj != null && jObj.get(JSONKeys.BODY) != null )
+        {
+            @SuppressWarnings("unchecked")
+            Map<String,Object> fields = doc;
+            fields.put( JSONKeys.BODY, jObj.get(JSONKeys.BODY) );
+        }
+    }
+    /**
+     * Get the MVD's group and version tables, decoding only the start of 
+     * the body if the MVD has not been fully decoded already
+     * @return an MVD that may lack pairs, or null if this is not an MVD
+     * @throws MVDException if the body could not be read or decoded
+     */
+    MVD header() throws MVDException
+    {
+        if ( this.mvd == null && this.header == null && this.isMVD )
+        {
+            if ( this.body != null )
+                this.header = MVDHeader.fromText( this.body );
+            else if ( this.data != null )
+                this.header = MVDHeader.fromBinary( this.data );
+            else
+            {
+                // read only as far as the end of the version table
+                try ( InputStream in = Connector.getConnection()
+                    .getBodyStreamFromDb(coll,docid) )
+                {
+                    if ( in != null )
+                        this.header = MVDHeader.read( in );
+                }
+                catch ( Exception e )
+                {
+                    throw new MVDException( e );
+                }
+            }
+            // an unreadable header may still decode in full, or say why
+            if ( this.header == null )
+                return full();
+        }
+        return (this.mvd!=null)?this.mvd:this.header;
+    }
+    /**
+     * Get the index of version names, building it on first use
+     * @return the index or null if this is not an MVD
+     * @throws MVDException if the MVD could not be read or decoded
+     */
+    VersionIndex index() throws MVDException
+    {
+        if ( this.index == null && isMVD() )
+        {
+            boolean shared = isShared();
+            if ( shared )
+                this.index = MVDCache.getShared().getIndex( coll, docid, 
+                    rev );
+            if ( this.index == null )
+            {
+                MVD mvd = header();
+                if ( mvd != null )
+                {
+                    this.index = new VersionIndex( mvd );
+                    if ( shared )
+                        MVDCache.getShared().putIndex( coll, docid, rev, 
+                            this.index );
+                }
+            }
+        }
+        return this.index;
+    }
+    /**
+     * Get the fully decoded MVD, decoding it on first use
+     * @return the MVD or null if this is not an MVD
+     * @throws MVDException if the MVD could not be read or decoded
+     */
+    MVD full() throws MVDException
+    {
+        if ( this.mvd == null && this.isMVD )
+        {
+            try
+            {
+                if ( this.coll != null )
+                    this.mvd = MVDCache.getShared().internalise( coll, doc, 
+                        data );
+                else if ( this.body != null )
+                    this.mvd = MVDFile.internalise( body );
+                else if ( this.data != null )
+                    this.mvd = MVDBinary.internalise( data );
+            }
+            catch ( MVDException e )
+            {
+                throw e;
+            }
+            catch ( Exception e )
+            {
+                throw new MVDException( e );
+            }
+            // the MVD now holds everything these did
+            this.header = null;
+            this.body = null;
+            this.data = null;
+            this.doc = null;
+            this.isMVD = this.mvd != null;
+        }
+        return this.mvd;
+    }
+    /**
+     * Read the descriptive fields common to all formats
+     * @param doc the JSON document from the database
+     */
+    private void readFields( JSONObject doc )
+    {
         this.author = (String)doc.get(JSONKeys.AUTHOR);
         this.description = (String)doc.get(JSONKeys.DESCRIPTION);
         this.style = (String)doc.get(JSONKeys.STYLE);
@@ -74,63 +268,189 @@ public class EcdosisMVD
      * Get an array of ALL the full version names in an MVD
      * @return a list of full version names
      */
-    public String[] getAllVersions()
+    public String[] getAllVersions() throws MVDException
     {
-        if ( mvd == null )
+        VersionIndex vi = index();
+        if ( vi == null )
         {
             String[] all = new String[1];
             all[0] = version1;
             return all;
         }
         else
-        {
-            ArrayList<String> list = new ArrayList<String>();
-            int numVersions = mvd.numVersions();
-            for ( short i=1;i<=numVersions;i++ )
-            {
-                String v = mvd.getVersionId(i);
-                list.add(v);
-            }
-            String[] arr = new String[list.size()];
-            list.toArray(arr);
-            return arr;
-        }
+            return vi.paths.clone();
+    }
+    /**
+     * Can results for this MVD be shared between requests?
+     * @return true if it is an MVD with a known docid and revision
+     */
+    boolean isShared()
+    {
+        return isMVD() && coll != null && docid != null && rev.length() > 0;
+    }
+    /**
+     * Is this an MVD, decoded or not?
+     * @return true if it is, false if a single plain version
+     */
+    public boolean isMVD()
+    {
+        return isMVD || mvd != null;
     }
     public String getFormat()
     {
         return format;
     }
-    public int numVersions()
+    public int numVersions() throws MVDException
     {
-        if ( mvd != null )
-            return mvd.numVersions();
+        VersionIndex vi = index();
+        if ( vi != null )
+            return vi.paths.length;
         else
             return 1;
     }
-    public String getVersionName( int vid )
+    public String getVersionName( int vid ) throws MVDException
     {
-        if ( mvd != null )
-            return mvd.getVersionId( (short)vid );
+        VersionIndex vi = index();
+        if ( vi != null )
+            return vi.getPath( vid );
         else 
             return version1;
     }
-    public char[] getVersion( int vid )
+    public char[] getVersion( int vid ) throws MVDException
     {
-        if ( mvd != null )
-            return mvd.getVersion( vid );
-        else if ( text != null )
-            return text.toCharArray();
-        else
+        String version = getVersionString( vid );
+        return (version==null)?null:version.toCharArray();
+    }
+    /**
+     * Get the text of a version, reconstructing it only once per document 
+     * revision. The String is shared, so prefer it to getVersion's copy.
+     * @param vid the version id
+     * @return the version's text or null if it is not found
+     */
+    public String getVersionString( int vid ) throws MVDException
+    {
+        if ( !isMVD && mvd == null )
+            return text;
+        if ( versions == null )
+            versions = new HashMap<Integer,String>();
+        String version = versions.get( vid );
+        if ( version == null )
+        {
+            boolean shared = isShared();
+            if ( shared )
+                version = VersionCache.getShared().get( coll, docid, rev, 
+                    vid );
+            if ( version == null )
+            {
+                MVD mvd = full();
+                char[] data = (mvd==null)?null:mvd.getVersion( vid );
+                if ( data != null )
+                {
+                    version = new String( data );
+                    if ( shared )
+                        VersionCache.getShared().put( coll, docid, rev, 
+                            vid, version );
+                }
+            }
+            if ( version != null )
+                versions.put( vid, version );
+        }
+        return version;
+    }
+    /**
+     * Get the text of a version if it has already been reconstructed
+     * @param vid the version id
+     * @return the whole version or null if it would have to be built
+     */
+    String getCachedVersion( int vid )
+    {
+        if ( !isMVD && mvd == null )
+            return text;
+        String version = (versions==null)?null:versions.get( vid );
+        if ( version == null && isShared() )
+            version = VersionCache.getShared().get( coll, docid, rev, vid );
+        return version;
+    }
+    /**
+     * Get the length of a version without reconstructing it
+     * @param vid the version id
+     * @return the version's length in chars or -1 if it is not found
+     */
+    public int getVersionLength( int vid ) throws MVDException
+    {
+        String version = getCachedVersion( vid );
+        if ( version != null )
+            return version.length();
+        MVD mvd = full();
+        if ( mvd == null || vid < 1 || vid > mvd.numVersions() )
+            return -1;
+        ArrayList<Pair> pairs = mvd.getPairs();
+        int len = 0;
+        for ( int i=0;i<pairs.size();i++ )
+        {
+            Pair p = pairs.get( i );
+            if ( p.versions.get(vid) )
+                len += p.length();
+        }
+        return len;
+    }
+    /**
+     * Get part of a version, copying only the pairs that overlap it.
+     * Used for paging through a version without building all of it.
+     * @param vid the version id
+     * @param offset the offset in the version to start from
+     * @param length the most chars to get, or -1 for the rest
+     * @return the text of the range, possibly empty, or null if the
+     * version is not found
+     */
+    public String getVersionRange( int vid, int offset, int length )
+        throws MVDException
+    {
+        if ( offset < 0 )
+            offset = 0;
+        String version = getCachedVersion( vid );
+        if ( version != null )
+        {
+            int start = Math.min( offset, version.length() );
+            int end = (length<0||length>version.length()-start)
+                ?version.length():start+length;
+            return version.substring( start, end );
+        }
+        MVD mvd = full();
+        if ( mvd == null || vid < 1 || vid > mvd.numVersions() )
             return null;
+        if ( length < 0 || length > Integer.MAX_VALUE-offset )
+            length = Integer.MAX_VALUE-offset;
+        StringBuilder sb = new StringBuilder( Math.min(length,TABLE_CHUNK) );
+        ArrayList<Pair> pairs = mvd.getPairs();
+        int pos = 0;
+        int end = offset+length;
+        for ( int i=0;i<pairs.size()&&pos<end;i++ )
+        {
+            Pair p = pairs.get( i );
+            if ( p.versions.get(vid) )
+            {
+                int plen = p.length();
+                if ( pos+plen > offset )
+                {
+                    int from = Math.max( offset-pos, 0 );
+                    int to = Math.min( end-pos, plen );
+                    sb.append( p.getChars(), from, to-from );
+                }
+                pos += plen;
+            }
+        }
+        return sb.toString();
     }
     public String getDefaultVersion()
     {
         return this.version1;
     }
-    public String getVersionTable()
+    public String getVersionTable() throws MVDException
     {
-        if ( this.mvd != null )
-            return this.mvd.getVersionTable();
+        MVD mvd = header();
+        if ( mvd != null )
+            return mvd.getVersionTable();
         else
         {
             StringBuilder sb = new StringBuilder();
@@ -144,10 +464,11 @@ public class EcdosisMVD
             return sb.toString();
         }
     }
-    public int[] getVersionLengths()
+    public int[] getVersionLengths() throws MVDException
     {
-        if ( this.mvd != null )
-            return this.mvd.getVersionLengths();
+        MVD mvd = full();
+        if ( mvd != null )
+            return mvd.getVersionLengths();
         else
         {
             int[] lengths = new int[1];
@@ -155,10 +476,11 @@ public class EcdosisMVD
             return lengths;
         }
     }
-    public MVD getMVD()
+    public MVD getMVD() throws MVDException
     {
-        if ( this.mvd != null )
-            return this.mvd;
+        MVD mvd = full();
+        if ( mvd != null )
+            return mvd;
         else
             return null;
     }
@@ -167,10 +489,28 @@ public class EcdosisMVD
      * @param base the base version
      * @return an array of section starts in base
      */
-    public int[] measureTable( short base )
+    public int[] measureTable( short base ) throws MVDException
     {
-        if ( this.mvd != null )
-            return this.mvd.measureTable(base);
+        if ( isShared() )
+        {
+            int[] stats = MVDResults.getShared().getMeasure( coll, docid, 
+                rev, base );
+            if ( stats == null )
+            {
+                MVD mvd = full();
+                if ( mvd != null )
+                {
+                    stats = mvd.measureTable( base );
+                    MVDResults.getShared().putMeasure( coll, docid, rev, 
+                        base, stats );
+                }
+            }
+            if ( stats != null )
+                return stats;
+        }
+        MVD mvd = full();
+        if ( mvd != null )
+            return mvd.measureTable(base);
         else
         {
             int[] lengths = getVersionLengths();
@@ -186,45 +526,32 @@ public class EcdosisMVD
      * @param mvd the mvd to get the version of
      * @return the base version without fail (1 by default)
      */
-    public short getBaseVersion( String baseVersion )
+    public short getBaseVersion( String baseVersion ) throws MVDException
     {
-        if ( this.mvd == null )
+        VersionIndex vi = index();
+        if ( vi == null )
             return (short)1;
-        else
+        short base = (baseVersion==null)?vi.getByNameAndGroup("","")
+            :vi.getByPath( baseVersion );
+        if ( base == 0 )
         {
-            String shortName="";
-            String groups="";
-            if ( baseVersion != null )
-            {
-                int pos = baseVersion.lastIndexOf("/");
-                if ( pos != -1 )
-                {
-                    shortName = baseVersion.substring(pos+1);
-                    groups = baseVersion.substring(0,pos);
-                }
-                else
-                    shortName = baseVersion;
-            }
-            short base = (short)mvd.getVersionByNameAndGroup( shortName, 
-                groups );
-            if ( base == 0 )
-            {
-                System.out.println("version "+shortName+" in group "
-                    +groups+" not found. Substituting 1");
-                base = 1;
-            }
-            return base;
+            System.out.println("version "+baseVersion
+                +" not found. Substituting 1");
+            base = 1;
         }
+        return base;
     }
-    public String getGroupPath( short v2 )
+    public String getGroupPath( short v2 ) throws MVDException
     {
+        MVD mvd = header();
         if ( mvd != null )
             return mvd.getGroupPath(v2);
         else
             return "/";
     }
-    public String getVersionShortName( short v2 )
+    public String getVersionShortName( short v2 ) throws MVDException
     {
+        MVD mvd = header();
         if ( mvd != null )
             return mvd.getVersionShortName(v2);
         else
@@ -233,22 +560,17 @@ public class EcdosisMVD
     /**
      * Get the numerical id of a shortened version nmae (minus /layer-)
      */
-    public short getVersionId( String vShortName )
+    public short getVersionId( String vShortName ) throws MVDException
     {
-        if ( mvd != null )
-        {
-            short ideal=0;
-            String[] all = getAllVersions();
-            for ( int i=0;i<all.length;i++ )
-                if ( ideal==0 && all[i].startsWith(vShortName) )
-                    ideal = (short)(i+1);
-            return ideal;
-        }
+        VersionIndex vi = index();
+        if ( vi != null )
+            return vi.getByPrefix( vShortName );
         else
             return 1;
     }
-    public String getVersionLongName( short v2 )
+    public String getVersionLongName( short v2 ) throws MVDException
     {
+        MVD mvd = header();
         if ( mvd != null )
             return mvd.getVersionLongName(v2);
         else
@@ -259,18 +581,20 @@ public class EcdosisMVD
             return "Version "+version;
         }
     }  
-    public int getNextVersionId( short v1 )
+    public int getNextVersionId( short v1 ) throws MVDException
     {
-        if ( this.mvd != null )
-            return this.mvd.getNextVersionId(v1);
+        MVD mvd = header();
+        if ( mvd != null )
+            return mvd.getNextVersionId(v1);
         else
             return 1;
     }
     public short getVersionByNameAndGroup( String shortName, 
-            String groups )
+            String groups ) throws MVDException
     {
-        if ( this.mvd != null )
-            return (short)this.mvd.getVersionByNameAndGroup(shortName,groups);
+        VersionIndex vi = index();
+        if ( vi != null )
+            return vi.getByNameAndGroup( shortName, groups );
         else
             return (short)1;
     }
@@ -288,10 +612,11 @@ public class EcdosisMVD
      */
     public String getTableView( short base, int start, int len, 
         boolean compact, boolean hideMerged, boolean wholeWords,
-        String spec, int firstID, String tableId )
+        String spec, int firstID, String tableId ) throws MVDException
     {
-        if ( this.mvd != null )
-            return this.mvd.getTableView( base, start, len, 
+        MVD mvd = full();
+        if ( mvd != null )
+            return mvd.getTableView( base, start, len, 
                 compact, hideMerged, wholeWords,
                 spec, firstID, tableId );
         else
@@ -320,9 +645,11 @@ public class EcdosisMVD
      * @return a JSON document
      */
     public String getTable( short base, int start, int len, String spec )
+        throws MVDException
     {
-        if ( this.mvd != null )
-            return this.mvd.getTable(base,start,len,spec);
+        MVD mvd = full();
+        if ( mvd != null )
+            return mvd.getTable(base,start,len,spec);
         else
         {
             JSONObject jDoc = new JSONObject();
@@ -350,10 +677,217 @@ public class EcdosisMVD
             return jDoc.toJSONString();
         }
     }
-    public double[][] computeDiffMatrix()
+    /**
+     * Divide a range of the base version into chunks for rendering. The 
+     * MVD does not report where the sections of its table fall, so the 
+     * chunks are simply consecutive spans of base.
+     * @param start the start offset within base of the range
+     * @param len the length of the range within base
+     * @param chunkLen the most chars of base in a chunk
+     * @return a list of start offsets and lengths, one pair per chunk
+     */
+    static ArrayList<int[]> tableChunks( int start, int len, int chunkLen )
+    {
+        ArrayList<int[]> chunks = new ArrayList<int[]>();
+        int end = start+len;
+        int chunkStart = start;
+        while ( end-chunkStart > chunkLen )
+        {
+            chunks.add( new int[]{chunkStart,chunkLen} );
+            chunkStart += chunkLen;
+        }
+        chunks.add( new int[]{chunkStart,end-chunkStart} );
+        return chunks;
+    }
+    /**
+     * Write a HTML table of the "MVD", exactly as getTableView returns it
+     * @param out the writer to write the table to
+     * @param base the version to regard as the base
+     * @param start the start offset within base of the range
+     * @param len the length of the range within base
+     * @param compact compact the table by merging nearly equal versions
+     * @param hideMerged display only base version in merged sections
+     * @param wholeWords expand differences to whole words
+     * @param spec a specification of a comma-separated set of versions
+     * @param firstID ID of the first merged text ID
+     * @param tableId the id of the table
+     * @throws IOException if the writer failed
+     * @throws MVDException if the MVD could not be read or decoded
+     */
+    public void writeTableView( Writer out, short base, int start, int len, 
+        boolean compact, boolean hideMerged, boolean wholeWords,
+        String spec, int firstID, String tableId )
+        throws IOException, MVDException
     {
-        if ( this.mvd != null )
-            return this.mvd.computeDiffMatrix();
+        writeTableView( out, base, start, len, compact, hideMerged, 
+            wholeWords, spec, firstID, tableId, 0 );
+    }
+    /**
+     * Write a HTML view of the "MVD", optionally as a series of tables 
+     * each covering at most chunkLen chars of base, written and flushed one 
+     * at a time. Only one table's HTML is held at once, though the whole 
+     * MVD is still decoded. The tables have ids tableId, tableId-2 etc. 
+     * and the merged text IDs of each start at firstID plus the offset of 
+     * its range from start, so they are unique but not consecutive.
+     * @param out the writer to write the tables to
+     * @param base the version to regard as the base
+     * @param start the start offset within base of the range
+     * @param len the length of the range within base
+     * @param compact compact the table by merging nearly equal versions
+     * @param hideMerged display only base version in merged sections
+     * @param wholeWords expand differences to whole words
+     * @param spec a specification of a comma-separated set of versions
+     * @param firstID ID of the first merged text ID
+     * @param tableId the id of the (first) table
+     * @param chunkLen the most chars of base in one table, or 0 for a 
+     * single table exactly as getTableView returns it
+     * @throws IOException if the writer failed
+     * @throws MVDException if the MVD could not be read or decoded
+     */
+    public void writeTableView( Writer out, short base, int start, int len, 
+        boolean compact, boolean hideMerged, boolean wholeWords,
+        String spec, int firstID, String tableId, int chunkLen ) 
+        throws IOException, MVDException
+    {
+        MVD mvd = full();
+        if ( mvd != null && chunkLen > 0 )
+        {
+            ArrayList<int[]> chunks = tableChunks( start, len, chunkLen );
+            for ( int i=0;i<chunks.size();i++ )
+            {
+                int[] chunk = chunks.get( i );
+                String id = (i==0)?tableId:tableId+"-"+(i+1);
+                out.write( mvd.getTableView(base, chunk[0], chunk[1],
+                    compact, hideMerged, wholeWords, spec, 
+                    firstID+chunk[0]-start, id) );
+                out.flush();
+            }
+        }
+        else if ( mvd != null )
+        {
+            out.write( mvd.getTableView(base, start, len, compact, 
+                hideMerged, wholeWords, spec, firstID, tableId) );
+            out.flush();
+        }
+        else
+        {
+            out.write("<table id=\"");
+            out.write(tableId);
+            out.write("\"><tr>");
+            out.write("<td class=\"siglumleft\">");
+            out.write(this.version1);
+            out.write("</td>");
+            out.write("<td>");
+            out.write(this.text);
+            out.write("</td>");
+            out.write("</tr></table>");
+            out.flush();
+        }
+    }
+    /**
+     * Write a JSON representation of the MVD as a table, exactly as 
+     * getTable returns it
+     * @param out the writer to write the table to
+     * @param base the version to regard as the base
+     * @param start the offset into base to start from
+     * @param len the length from start to write
+     * @param spec a specification of a comma-separated set of versions
+     * @throws IOException if the writer failed
+     * @throws MVDException if the MVD could not be read or decoded
+     */
+    public void writeTable( Writer out, short base, int start, int len, 
+        String spec )
+        throws IOException, MVDException
+    {
+        writeTable( out, base, start, len, spec, 0 );
+    }
+    /**
+     * Write a JSON representation of the MVD, optionally as a JSON array 
+     * of tables in the form getTable returns, each covering at most 
+     * chunkLen chars of base and written and flushed one at a time. Only 
+     * one table's JSON is held at once, though the whole MVD is still 
+     * decoded.
+     * @param out the writer to write the table(s) to
+     * @param base the version to regard as the base
+     * @param start the offset into base to start from
+     * @param len the length from start to write
+     * @param spec a specification of a comma-separated set of versions
+     * @param chunkLen the most chars of base in one table, or 0 for a 
+     * single table exactly as getTable returns it
+     * @throws IOException if the writer failed
+     * @throws MVDException if the MVD could not be read or decoded
+     */
+    public void writeTable( Writer out, short base, int start, int len, 
+        String spec, int chunkLen ) throws IOException, MVDException
+    {
+        MVD mvd = full();
+        if ( mvd != null && chunkLen > 0 )
+        {
+            ArrayList<int[]> chunks = tableChunks( start, len, chunkLen );
+            out.write( "[" );
+            for ( int i=0;i<chunks.size();i++ )
+            {
+                int[] chunk = chunks.get( i );
+                if ( i > 0 )
+                    out.write( "," );
+                out.write( mvd.getTable(base,chunk[0],chunk[1],spec) );
+                out.flush();
+            }
+            out.write( "]" );
+        }
+        else
+            out.write( getTable(base,start,len,spec) );
+        out.flush();
+    }
+    /**
+     * Compute the diff matrix on several threads, giving up after a time. 
+     * Interrupting the calling thread also stops the computation.
+     * @param parallelism the most threads to use
+     * @param timeout milliseconds to wait for the result, 0 for ever
+     * @return the matrix of differences between each pair of versions
+     * @throws TimeoutException if the timeout expired first
+     * @throws InterruptedException if the calling thread was interrupted
+     */
+    public double[][] computeDiffMatrix( int parallelism, long timeout ) 
+        throws TimeoutException, InterruptedException, MVDException
+    {
+        double[][] diffs = null;
+        if ( isShared() )
+            diffs = MVDResults.getShared().getDiffMatrix( coll, docid, rev );
+        if ( diffs == null )
+        {
+            MVD mvd = full();
+            if ( mvd == null )
+                return computeDiffMatrix();
+            diffs = new DiffMatrix( mvd ).compute( parallelism, timeout );
+            if ( isShared() )
+                MVDResults.getShared().putDiffMatrix( coll, docid, rev, 
+                    diffs );
+        }
+        return diffs;
+    }
+    public double[][] computeDiffMatrix() throws MVDException
+    {
+        if ( isShared() )
+        {
+            double[][] diffs = MVDResults.getShared().getDiffMatrix( coll, 
+                docid, rev );
+            if ( diffs == null )
+            {
+                MVD mvd = full();
+                if ( mvd != null )
+                {
+                    diffs = mvd.computeDiffMatrix();
+                    MVDResults.getShared().putDiffMatrix( coll, docid, rev, 
+                        diffs );
+                }
+            }
+            if ( diffs != null )
+                return diffs;
+        }
+        MVD mvd = full();
+        if ( mvd != null )
+            return mvd.computeDiffMatrix();
         else
         {
             double[][] array = new double[1][];
@@ -361,10 +895,11 @@ public class EcdosisMVD
             return array;
         }
     }
-    public String getVersionId( short num )
+    public String getVersionId( short num ) throws MVDException
     {
-        if ( this.mvd != null )
-            return this.mvd.getVersionId(num);
+        VersionIndex vi = index();
+        if ( vi != null )
+            return vi.getPath( num );
         else
             return version1;
     }
@@ -14,6 +14,7 @@
  *  along with calliope.  If not, see <http://www.gnu.org/licenses/>.
  */
 package calliope.core.handler;
+import edu.luc.nmerge.exception.MVDException;
 import edu.luc.nmerge.mvd.MVD;
 
 /**
@@ -28,10 +29,18 @@ public class EcdosisVersion
     String content;
     /** actual text of the version */
     char[] version;
+    /** the version as a String, made at most once */
+    String text;
     /** if CorCode the default style */
     String defaultStyle;
     /** the original mvd data or null */
     MVD mvd;
+    /** the document the mvd is decoded from on demand, or null */
+    EcdosisMVD source;
+    /** where the text starts in the whole version, if it is a range */
+    int offset;
+    /** length of the whole version, or -1 if the text is all of it */
+    int totalLength = -1;
     /**
      * Set the format of this version
      * @param format the format to set
@@ -62,6 +71,26 @@ public class EcdosisVersion
     public void setVersion( char[] version )
     {
         this.version = version;
+        this.text = null;
+    }
+    /**
+     * Set the version data of this version without copying it
+     * @param text the version contents, possibly shared
+     */
+    public void setVersion( String text )
+    {
+        this.text = text;
+        this.version = null;
+    }
+    /**
+     * Record that the version data is only part of the version
+     * @param offset where the data starts in the whole version
+     * @param totalLength the length of the whole version
+     */
+    public void setRange( int offset, int totalLength )
+    {
+        this.offset = offset;
+        this.totalLength = totalLength;
     }
     /**
      * Remember the MVD used to get the version
@@ -70,6 +99,15 @@ public class EcdosisVersion
     public void setMVD( MVD mvd )
     {
         this.mvd = mvd;
+    }
+    /**
+     * Remember the document the version came from, so that its MVD need 
+     * only be decoded if getMVD is called
+     * @param source the document, MVD or not
+     */
+    public void setSource( EcdosisMVD source )
+    {
+        this.source = source;
     }
      /**
      * Set the format of this version
@@ -90,9 +128,12 @@ public class EcdosisVersion
      /**
      * Set the mvd used to fetch this version
      * @return the original MVD
+     * @throws MVDException if the source's MVD could not be decoded
      */
-    public MVD getMVD()
+    public MVD getMVD() throws MVDException
     {
+        if ( mvd == null && source != null )
+            mvd = source.getMVD();
         return mvd;
     }
     /**
@@ -101,6 +142,8 @@ public class EcdosisVersion
      */
     public char[] getVersion()
     {
+        if ( version == null && text != null )
+            version = text.toCharArray();
         return version;
     }
     /**
@@ -109,7 +152,9 @@ public class EcdosisVersion
      */
     public String getVersionString()
     {
-        return new String( version );
+        if ( text == null )
+            text = new String( version );
+        return text;
     }
     /**
      * Get the default style of this version
@@ -125,10 +170,40 @@ public class EcdosisVersion
      */
     public int getVersionLength()
     {
-        return version.length;
+        return (text!=null)?text.length():version.length;
+    }
+    /**
+     * Get where the version data starts in the whole version
+     * @return 0 unless the data is a range
+     */
+    public int getOffset()
+    {
+        return offset;
+    }
+    /**
+     * Get the length of the whole version, even if only part was fetched
+     * @return the version's full length
+     */
+    public int getTotalLength()
+    {
+        return (totalLength<0)?getVersionLength():totalLength;
+    }
+    /**
+     * Get part of the version data
+     * @param offset the offset in the version data
+     * @param length the most chars to get, or -1 for the rest
+     * @return the text of the range, possibly empty
+     */
+    public String getVersionRange( int offset, int length )
+    {
+        String text = getVersionString();
+        int start = Math.min( Math.max(offset,0), text.length() );
+        int end = (length<0||length>text.length()-start)?text.length()
+            :start+length;
+        return text.substring( start, end );
     }
     public boolean isEmpty()
     {
-        return this.mvd==null;
+        return this.mvd==null && (source==null || !source.isMVD());
     }
 }
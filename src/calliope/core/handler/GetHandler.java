@@ -19,17 +19,16 @@ package calliope.core.handler;
 import calliope.core.database.Connector;
 import calliope.core.constants.Database;
 import org.json.simple.JSONObject;
-import org.json.simple.JSONValue;
 import calliope.core.exception.CalliopeException;
+import edu.luc.nmerge.exception.MVDException;
 import calliope.core.constants.JSONKeys;
 import calliope.core.constants.Formats;
 import calliope.core.constants.HTMLNames;
-import edu.luc.nmerge.mvd.MVD;
-import edu.luc.nmerge.mvd.MVDFile;
 import calliope.core.Utils;
 import calliope.core.json.corcode.Range;
 import calliope.core.json.corcode.STILDocument;
 import java.util.ArrayList;
+import java.util.Map;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
@@ -42,36 +41,89 @@ public class GetHandler extends Handler
     protected JSONObject doGetMetadata( String docid ) 
         throws CalliopeException
     {
-        String res = null;
-        JSONObject jDoc = null;
         try
         {
-            res = Connector.getConnection().getFromDb(Database.METADATA,docid);
-            if ( res != null )
-                jDoc = (JSONObject)JSONValue.parse( res );
-            return jDoc;
+            return Connector.getConnection().getObjectFromDb(
+                Database.METADATA,docid);
         }
         catch ( Exception e )
         {
             throw new CalliopeException( e );
         }
     }
+    /**
+     * Get just some fields of a document's metadata
+     * @param docid the document's docid
+     * @param fields the fields wanted, e.g. title or author
+     * @return the fields found or null if there is no metadata
+     * @throws CalliopeException 
+     */
+    protected JSONObject doGetMetadata( String docid, String... fields ) 
+        throws CalliopeException
+    {
+        try
+        {
+            return Connector.getConnection().getObjectFromDb(
+                Database.METADATA,docid,fields);
+        }
+        catch ( Exception e )
+        {
+            throw new CalliopeException( e );
+        }
+    }
+    /**
+     * Fetch a document that may be an MVD in one read. One whose MVD is 
+     * cached is read without its body, which is then probably not needed. 
+     * Any other is read whole, since its body will be, except that a body 
+     * in GridFS is left for EcdosisMVD to read as much of as it needs.
+     * @param db the collection it is in
+     * @param docid its docid
+     * @return the document, perhaps without its body, or null
+     * @throws Exception 
+     */
+    private static JSONObject fetchDocument( String db, String docid ) 
+        throws Exception
+    {
+        if ( MVDCache.getShared().contains(db,docid) )
+            return Connector.getConnection().getObjectFromDbExcept(
+                db,docid,JSONKeys.BODY);
+        else
+            return Connector.getConnection().getObjectFromDbExcept(
+                db,docid,JSONKeys.BODY_FILE);
+    }
+    /**
+     * Fetch the body of a document that is not an MVD
+     * @param db the collection it is in
+     * @param docid its docid
+     * @return the body as text or null
+     * @throws Exception 
+     */
+    private static String fetchTextBody( String db, String docid ) 
+        throws Exception
+    {
+        JSONObject jObj = Connector.getConnection().getObjectFromDb(
+            db,docid,JSONKeys.BODY);
+        return (jObj==null)?null:(String)jObj.get(JSONKeys.BODY);
+    }
     protected EcdosisMVD doGetMVD( String db, String docid ) 
         throws CalliopeException
     {
-        String res = null;
-        JSONObject jDoc = null;
         try
         {
-            res = Connector.getConnection().getFromDb(db,docid);
-            if ( res != null )
-                jDoc = (JSONObject)JSONValue.parse( res );
+            JSONObject jDoc = fetchDocument( db, docid );
             if ( jDoc != null )
             {
                 String format = (String)jDoc.get(JSONKeys.FORMAT);
                 if ( format != null )
                 {
-                    return new EcdosisMVD(jDoc);
+                    if ( !format.startsWith("MVD") 
+                        && !jDoc.containsKey(JSONKeys.BODY) )
+                    {
+                        @SuppressWarnings("unchecked")
+                        Map<String,Object> fields = jDoc;
+                        fields.put( JSONKeys.BODY, fetchTextBody(db,docid) );
+                    }
+                    return new EcdosisMVD(db,jDoc);
                 }
             }
             return null;
@@ -92,21 +144,36 @@ public class GetHandler extends Handler
     protected EcdosisVersion doGetResourceVersion( String db, String docID, 
         String vPath ) throws CalliopeException
     {
+        return doGetResourceVersion( db, docID, vPath, 0, -1 );
+    }
+    /**
+     * Retrieve part of a CorTex/CorCode version for a paginated view. Only 
+     * the MVD pairs that overlap the range are copied.
+     * @param db the database to fetch from
+     * @param docID the document ID
+     * @param vPath the groups/version path to get or null for default version
+     * @param offset the offset in the version to start from
+     * @param length the most chars to get, or -1 for the rest
+     * @return the version's range, which knows its offset and the whole 
+     * version's length
+     * @throws CalliopeException if the resource couldn't be found for some reason
+     */
+    protected EcdosisVersion doGetResourceVersion( String db, String docID, 
+        String vPath, int offset, int length ) throws CalliopeException
+    {
+        boolean whole = offset <= 0 && length < 0;
         EcdosisVersion version = new EcdosisVersion();
         JSONObject doc = null;
         char[] data = null;
-        String res = null;
         //System.out.println("fetching version "+vPath );
         try
         {
-            res = Connector.getConnection().getFromDb(db,docID);
+            doc = fetchDocument( db, docID );
         }
         catch ( Exception e )
         {
             throw new CalliopeException( e );
         }
-        if ( res != null )
-            doc = (JSONObject)JSONValue.parse( res );
         if ( doc != null )
         {
             String format = (String)doc.get(JSONKeys.FORMAT);
@@ -121,42 +188,68 @@ public class GetHandler extends Handler
             }
             else if ( version.getFormat().equals(Formats.MVD) )
             {
-                MVD mvd = MVDFile.internalise( (String)doc.get(
-                    JSONKeys.BODY) );
-                if ( vPath == null )
-                    vPath = (String)doc.get( JSONKeys.VERSION1 );
-                version.setStyle((String)doc.get(JSONKeys.STYLE));
-                String sName = Utils.getShortName(vPath);
-                String gName = Utils.getGroupName(vPath);
-                int vId = mvd.getVersionByNameAndGroup(sName, gName );
-                version.setMVD(mvd);
-                System.out.println(mvd.getVersionTable());
-                System.out.println("sName="+sName+" gName="+gName+" vId="+vId);
-                if ( vId != 0 )
+                try
                 {
-                    data = mvd.getVersion( vId );
-                    String desc = mvd.getDescription();
-                    //System.out.println("description="+desc);
-                    int nversions = mvd.numVersions();
-                    //System.out.println("nversions="+nversions);
-                    //System.out.println("length of version "+vId+"="+data.length);
-                    if ( data != null )
-                        version.setVersion( data );
+                    // the MVD is only decoded if the version isn't cached
+                    EcdosisMVD mvd = new EcdosisMVD( db, doc );
+                    if ( vPath == null )
+                        vPath = (String)doc.get( JSONKeys.VERSION1 );
+                    version.setStyle((String)doc.get(JSONKeys.STYLE));
+                    String sName = Utils.getShortName(vPath);
+                    String gName = Utils.getGroupName(vPath);
+                    int vId = mvd.getVersionByNameAndGroup(sName, gName );
+                    version.setSource(mvd);
+                    if ( vId != 0 )
+                    {
+                        String text = (whole)?mvd.getVersionString( vId )
+                            :mvd.getVersionRange( vId, offset, length );
+                        if ( text != null )
+                        {
+                            version.setVersion( text );
+                            if ( !whole )
+                                version.setRange( Math.max(offset,0), 
+                                    mvd.getVersionLength(vId) );
+                        }
+                        else
+                            throw new CalliopeException("Version "+vPath
+                                +" not found");
+                    }
                     else
-                        throw new CalliopeException("Version "+vPath+" not found");
+                        throw new CalliopeException("Version "+vPath
+                            +" not found");
+                }
+                catch ( MVDException e )
+                {
+                    throw new CalliopeException( e );
                 }
-                else
-                    throw new CalliopeException("Version "+vPath+" not found");
             }
             else
             {
-                String body = (String)doc.get( JSONKeys.BODY );
+                String body = (String)doc.get(JSONKeys.BODY);
+                try
+                {
+                    // read without its body if it used to be an MVD
+                    if ( body == null && !doc.containsKey(JSONKeys.BODY) )
+                        body = fetchTextBody( db, docID );
+                }
+                catch ( Exception e )
+                {
+                    throw new CalliopeException( e );
+                }
                 version.setStyle((String)doc.get(JSONKeys.STYLE));
                 if ( body == null )
                     throw new CalliopeException("empty body");
                 data = body.toCharArray();
                 version.setVersion( data );
             }
+            // a link that could not be read has no data to cut
+            if ( !whole && data != null 
+                && !version.getFormat().equals(Formats.MVD) )
+            {
+                String text = version.getVersionRange( offset, length );
+                version.setVersion( text );
+                version.setRange( Math.max(offset,0), data.length );
+            }
         }
         return version;
     }
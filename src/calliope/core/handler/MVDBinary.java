@@ -0,0 +1,345 @@
+/*
+ * This file is part of calliope.core.
+ *
+ *  calliope.core is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  calliope.core is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with calliope.core.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2015
+ */
+
+package calliope.core.handler;
+
+import edu.luc.nmerge.exception.MVDException;
+import edu.luc.nmerge.mvd.Base64;
+import edu.luc.nmerge.mvd.MVD;
+import edu.luc.nmerge.mvd.MVDFile;
+import edu.luc.nmerge.mvd.Pair;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Convert MVDs to and from the raw binary bodies stored in the database, 
+ * without going through the base64 text form. The binary form, which is 
+ * what MVDFile base64-encodes, is laid out as follows. All numbers are 
+ * big-endian and strings are a short byte length followed by UTF-8.
+ * <ol>
+ * <li>the magic number DE AD C0 DE</li>
+ * <li>five ints: the header size, then the offsets of the group, version, 
+ * pairs and data tables</li>
+ * <li>the description and the encoding of the data, as strings</li>
+ * <li>the group table: a short count, then for each group its parent as 
+ * a short and its name</li>
+ * <li>the version table: a short count and the byte size of a version 
+ * set as a short, then for each version its group and backup as shorts 
+ * and its short and long names</li>
+ * <li>the pairs table: an int count, then for each pair its version set, 
+ * highest versions first, its offset in the data table and its length 
+ * as ints. The top two bits of the length mark the parent or child of a 
+ * transposition, which is followed by an int id shared by the two.</li>
+ * <li>the data table: the text of the pairs in the encoding</li>
+ * </ol>
+ * @author desmond
+ */
+public class MVDBinary 
+{
+    static final byte[] MAGIC = {(byte)0xDE,(byte)0xAD,(byte)0xC0,(byte)0xDE};
+    /** length of the magic number and the five ints after it */
+    static final int FIXED_SIZE = MAGIC.length+20;
+    static final int PARENT_FLAG = 0x80000000;
+    static final int CHILD_FLAG = 0x40000000;
+    static final int TRANSPOSE_MASK = 0xC0000000;
+    static final int LENGTH_MASK = 0x0FFFFFFF;
+    /**
+     * Reads numbers and strings from a binary MVD in turn
+     */
+    static class Reader
+    {
+        byte[] data;
+        int pos;
+        Reader( byte[] data, int pos )
+        {
+            this.data = data;
+            this.pos = pos;
+        }
+        int readInt()
+        {
+            int value = ((data[pos]&0xFF)<<24)|((data[pos+1]&0xFF)<<16)
+                |((data[pos+2]&0xFF)<<8)|(data[pos+3]&0xFF);
+            pos += 4;
+            return value;
+        }
+        short readShort()
+        {
+            short value = (short)(((data[pos]&0xFF)<<8)|(data[pos+1]&0xFF));
+            pos += 2;
+            return value;
+        }
+        String readString() throws UnsupportedEncodingException
+        {
+            int len = readShort() & 0xFFFF;
+            String str = new String( data, pos, len, "UTF-8" );
+            pos += len;
+            return str;
+        }
+        BitSet readVersionSet( int size )
+        {
+            BitSet set = new BitSet( size*8 );
+            // the last byte holds the lowest versions
+            for ( int i=0,p=pos+size-1;i<size;i++,p-- )
+                for ( int j=0;j<8;j++ )
+                    if ( (data[p] & (1<<j)) != 0 )
+                        set.set( i*8+j );
+            pos += size;
+            return set;
+        }
+    }
+    /**
+     * Read a binary MVD
+     * @param data the uncompressed MVD, or for a header only as far as 
+     * its pairs table
+     * @param withPairs true to read the pairs as well as the tables before
+     * @return the MVD, without pairs if withPairs is false
+     * @throws Exception if the data is not a well-formed MVD
+     */
+    static MVD parse( byte[] data, boolean withPairs ) throws Exception
+    {
+        for ( int i=0;i<MAGIC.length;i++ )
+            if ( data[i] != MAGIC[i] )
+                throw new MVDException("not a binary MVD");
+        // skip the header size
+        Reader in = new Reader( data, MAGIC.length+4 );
+        int groupTable = in.readInt();
+        int versionTable = in.readInt();
+        int pairsTable = in.readInt();
+        int dataTable = in.readInt();
+        String description = in.readString();
+        String encoding = in.readString();
+        MVD mvd = new MVD( description, encoding );
+        in.pos = groupTable;
+        short numGroups = in.readShort();
+        if ( numGroups < 0 )
+            throw new MVDException("Invalid number of groups: "+numGroups);
+        for ( short id=1;id<=numGroups;id++ )
+        {
+            mvd.addGroup( id, in.readShort() );
+            mvd.setGroupName( id, in.readString() );
+        }
+        in.pos = versionTable;
+        short numVersions = in.readShort();
+        if ( numVersions < 0 )
+            throw new MVDException("Invalid number of versions: "
+                +numVersions);
+        int setSize = in.readShort();
+        for ( int id=1;id<=numVersions;id++ )
+        {
+            short group = in.readShort();
+            if ( group > numGroups )
+                throw new MVDException("invalid group id="+group);
+            mvd.addVersion( id, group );
+            mvd.setVersionBackup( id, in.readShort() );
+            mvd.setVersionShortName( id, in.readString() );
+            mvd.setVersionLongName( id, in.readString() );
+        }
+        if ( withPairs )
+        {
+            in.pos = pairsTable;
+            readPairs( in, dataTable, setSize, mvd );
+        }
+        return mvd;
+    }
+    /**
+     * Read the pairs table, linking transposed pairs to their parents
+     * @param in the reader, positioned at the pairs table
+     * @param dataTable the offset of the data table
+     * @param setSize the size of each version set in bytes
+     * @param mvd the MVD to add the pairs to
+     * @throws Exception 
+     */
+    static void readPairs( Reader in, int dataTable, int setSize, MVD mvd )
+        throws Exception
+    {
+        HashMap<Integer,Pair> parents = new HashMap<Integer,Pair>();
+        // children read before their parents
+        HashMap<Integer,LinkedList<Pair>> orphans = 
+            new HashMap<Integer,LinkedList<Pair>>();
+        int numPairs = in.readInt();
+        if ( numPairs < 0 )
+            throw new MVDException("Invalid number of pairs: "+numPairs);
+        ArrayList<Pair> pairs = mvd.getPairs();
+        pairs.ensureCapacity( numPairs );
+        String encoding = mvd.getEncoding();
+        for ( int i=0;i<numPairs;i++ )
+        {
+            BitSet versions = in.readVersionSet( setSize );
+            int offset = dataTable+in.readInt();
+            int len = in.readInt();
+            int flag = len & TRANSPOSE_MASK;
+            len &= LENGTH_MASK;
+            Pair p;
+            if ( flag == PARENT_FLAG )
+            {
+                Integer id = in.readInt();
+                p = new Pair( versions, toChars(in.data,offset,len,encoding) );
+                LinkedList<Pair> children = orphans.remove( id );
+                if ( children != null )
+                {
+                    for ( Pair child : children )
+                    {
+                        child.setParent( p );
+                        p.addChild( child );
+                    }
+                }
+                parents.put( id, p );
+            }
+            else if ( flag == CHILD_FLAG )
+            {
+                Integer id = in.readInt();
+                p = new Pair( versions, null );
+                Pair parent = parents.get( id );
+                if ( parent == null )
+                {
+                    LinkedList<Pair> children = orphans.get( id );
+                    if ( children == null )
+                    {
+                        children = new LinkedList<Pair>();
+                        orphans.put( id, children );
+                    }
+                    children.add( p );
+                }
+                else
+                {
+                    p.setParent( parent );
+                    parent.addChild( p );
+                }
+            }
+            else
+                p = new Pair( versions, toChars(in.data,offset,len,encoding) );
+            pairs.add( p );
+        }
+        try
+        {
+            for ( int i=0;i<pairs.size();i++ )
+                pairs.get(i).verify();
+        }
+        catch ( Exception e )
+        {
+            System.out.println("MVDBinary: "+e.getMessage());
+        }
+    }
+    /**
+     * Decode the text of a pair
+     * @param data the binary MVD
+     * @param offset the offset of the text
+     * @param len its length in bytes
+     * @param encoding its encoding
+     * @return the text
+     */
+    static char[] toChars( byte[] data, int offset, int len, String encoding )
+    {
+        String str;
+        try
+        {
+            str = new String( data, offset, len, encoding );
+        }
+        catch ( UnsupportedEncodingException e )
+        {
+            str = new String( data, offset, len );
+        }
+        return str.toCharArray();
+    }
+    /**
+     * Is the data gzip-compressed?
+     * @param data the data
+     * @return true if it begins with the gzip magic number
+     */
+    public static boolean isGzipped( byte[] data )
+    {
+        return data.length > 2 && data[0] == (byte)0x1f 
+            && data[1] == (byte)0x8b;
+    }
+    /**
+     * Decompress gzipped data
+     * @param data the compressed bytes
+     * @return the uncompressed bytes
+     * @throws Exception 
+     */
+    static byte[] gunzip( byte[] data ) throws Exception
+    {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream( 
+            data.length*4 );
+        try ( GZIPInputStream gis = new GZIPInputStream(
+            new ByteArrayInputStream(data)) )
+        {
+            byte[] buf = new byte[8192];
+            int n;
+            while ( (n=gis.read(buf)) > 0 )
+                bos.write( buf, 0, n );
+        }
+        return bos.toByteArray();
+    }
+    /**
+     * Compress data with gzip
+     * @param data the raw bytes
+     * @return the compressed bytes
+     * @throws Exception 
+     */
+    static byte[] gzip( byte[] data ) throws Exception
+    {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream( 
+            data.length/4 );
+        try ( GZIPOutputStream gos = new GZIPOutputStream(bos) )
+        {
+            gos.write( data );
+        }
+        return bos.toByteArray();
+    }
+    /**
+     * Build an MVD from its binary body
+     * @param data the MVD in binary form, optionally gzipped
+     * @return the MVD
+     * @throws MVDException if it could not be parsed
+     */
+    public static MVD internalise( byte[] data ) throws MVDException
+    {
+        try
+        {
+            if ( isGzipped(data) )
+                data = gunzip( data );
+            return parse( data, true );
+        }
+        catch ( MVDException e )
+        {
+            throw e;
+        }
+        catch ( Exception e )
+        {
+            throw new MVDException( e );
+        }
+    }
+    /**
+     * Convert an MVD into a compressed binary body for storage
+     * @param mvd the MVD
+     * @return its gzipped binary form
+     * @throws Exception 
+     */
+    public static byte[] externalise( MVD mvd ) throws Exception
+    {
+        return gzip( Base64.decode(MVDFile.externalise(mvd)) );
+    }
+}
@@ -0,0 +1,384 @@
+/*
+ * This file is part of calliope.core.
+ *
+ *  calliope.core is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  calliope.core is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with calliope.core.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2015
+ */
+
+package calliope.core.handler;
+
+import calliope.core.constants.JSONKeys;
+import calliope.core.database.Connector;
+import calliope.core.database.DocumentListener;
+import calliope.core.exception.DbException;
+import edu.luc.nmerge.exception.MVDException;
+import edu.luc.nmerge.mvd.MVD;
+import edu.luc.nmerge.mvd.MVDFile;
+import edu.luc.nmerge.mvd.Pair;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.json.simple.JSONObject;
+
+/**
+ * A bounded cache of internalised MVDs, keyed by collection, docid and 
+ * document revision, so that repeated reads of the same document skip 
+ * the base64, gunzip and parse steps. The index of each MVD's versions 
+ * is cached alongside it, or on its own if the MVD was never decoded. 
+ * Cached MVDs are shared between requests and must be treated as 
+ * read-only.
+ * @author desmond
+ */
+public class MVDCache implements DocumentListener
+{
+    /** default approximate heap for cached MVDs */
+    public static long DEFAULT_MAX_BYTES = 64*1024*1024;
+    static MVDCache shared;
+    long maxBytes;
+    long usedBytes;
+    LinkedHashMap<String,Entry> map;
+    AtomicLong hits;
+    AtomicLong misses;
+    AtomicLong evictions;
+    static class Entry
+    {
+        String rev;
+        /** the decoded MVD or null if only its index is cached */
+        MVD mvd;
+        VersionIndex index;
+        long size;
+        Entry( String rev, MVD mvd, VersionIndex index, long size )
+        {
+            this.rev = rev;
+            this.mvd = mvd;
+            this.index = index;
+            this.size = size;
+        }
+    }
+    /**
+     * Create a cache
+     * @param maxBytes the approximate maximum heap for cached MVDs
+     */
+    public MVDCache( long maxBytes )
+    {
+        this.maxBytes = maxBytes;
+        this.map = new LinkedHashMap<String,Entry>( 16, 0.75f, true );
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+        this.evictions = new AtomicLong();
+    }
+    /**
+     * Get the cache shared by all handlers. It listens for writes through 
+     * the Connector so that changed documents are dropped at once.
+     * @return the shared cache
+     */
+    public static synchronized MVDCache getShared()
+    {
+        if ( shared == null )
+        {
+            shared = new MVDCache( DEFAULT_MAX_BYTES );
+            Connector.addListener( shared );
+        }
+        return shared;
+    }
+    /**
+     * Change the memory bound, evicting if necessary
+     * @param maxBytes the approximate maximum heap for cached MVDs
+     */
+    public synchronized void setMaxBytes( long maxBytes )
+    {
+        this.maxBytes = maxBytes;
+        evict();
+    }
+    static String makeKey( String coll, String docid )
+    {
+        return coll+"/"+docid;
+    }
+    /**
+     * Get the revision of a document
+     * @param doc the document from the database
+     * @return its _rev field or, failing that, a digest of its body
+     */
+    public static String getRevision( JSONObject doc )
+    {
+        Object rev = doc.get( JSONKeys.REV );
+        if ( rev != null )
+            return rev.toString();
+        else
+        {
+            Object body = doc.get( JSONKeys.BODY );
+            if ( body instanceof byte[] )
+            {
+                byte[] data = (byte[])body;
+                return data.length+":"+Arrays.hashCode(data);
+            }
+            else
+                return (body==null)?"":((String)body).length()+":"
+                    +body.hashCode();
+        }
+    }
+    /**
+     * Estimate the heap used by an MVD
+     * @param mvd the mvd
+     * @return roughly two bytes per char plus overhead for each pair
+     */
+    static long estimateSize( MVD mvd )
+    {
+        ArrayList<Pair> pairs = mvd.getPairs();
+        long size = 0;
+        for ( int i=0;i<pairs.size();i++ )
+            size += 64 + 2 * pairs.get(i).length();
+        return size;
+    }
+    /**
+     * Look up a cached MVD
+     * @param coll the collection it came from
+     * @param docid its docid
+     * @param rev the revision of the document now in the database
+     * @return the MVD or null if absent or of a different revision
+     */
+    public synchronized MVD get( String coll, String docid, String rev )
+    {
+        Entry e = map.get( makeKey(coll,docid) );
+        if ( e != null && e.mvd != null && e.rev.equals(rev) )
+        {
+            hits.incrementAndGet();
+            return e.mvd;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+    /**
+     * Look up the cached version index of an MVD
+     * @param coll the collection it came from
+     * @param docid its docid
+     * @param rev the revision of the document now in the database
+     * @return the index or null if absent or of a different revision
+     */
+    synchronized VersionIndex getIndex( String coll, String docid, 
+        String rev )
+    {
+        Entry e = map.get( makeKey(coll,docid) );
+        return ( e != null && e.rev.equals(rev) )?e.index:null;
+    }
+    /**
+     * Add the version index of an MVD to the cache, joining the MVD 
+     * itself if that revision is cached already
+     * @param coll the collection it came from
+     * @param docid its docid
+     * @param rev the revision of the document it was read from
+     * @param index the index of its versions
+     */
+    synchronized void putIndex( String coll, String docid, 
+        String rev, VersionIndex index )
+    {
+        if ( index.size > maxBytes )
+            return;
+        String key = makeKey( coll, docid );
+        Entry e = map.get( key );
+        if ( e != null && e.rev.equals(rev) )
+        {
+            if ( e.index != null )
+                return;
+            e.index = index;
+            e.size += index.size;
+        }
+        else
+        {
+            map.put( key, new Entry(rev,null,index,index.size) );
+            if ( e != null )
+                usedBytes -= e.size;
+        }
+        usedBytes += index.size;
+        evict();
+    }
+    /**
+     * Is any revision of a document cached? If so it is an MVD.
+     * @param coll the collection it came from
+     * @param docid its docid
+     * @return true if an MVD or its index was cached for it
+     */
+    public synchronized boolean contains( String coll, String docid )
+    {
+        return map.containsKey( makeKey(coll,docid) );
+    }
+    /**
+     * Add an MVD to the cache, replacing any older revision
+     * @param coll the collection it came from
+     * @param docid its docid
+     * @param rev the revision of the document it was read from
+     * @param mvd the internalised MVD
+     */
+    public synchronized void put( String coll, String docid, String rev, 
+        MVD mvd )
+    {
+        long size = estimateSize( mvd );
+        if ( size > maxBytes )
+            return;
+        String key = makeKey( coll, docid );
+        Entry old = map.get( key );
+        // keep an index already built for the same revision
+        VersionIndex index = null;
+        if ( old != null && old.rev.equals(rev) )
+            index = old.index;
+        if ( index != null )
+            size += index.size;
+        map.put( key, new Entry(rev,mvd,index,size) );
+        if ( old != null )
+            usedBytes -= old.size;
+        usedBytes += size;
+        evict();
+    }
+    /**
+     * Drop least recently used entries until under the memory bound
+     */
+    void evict()
+    {
+        Iterator<Map.Entry<String,Entry>> iter = map.entrySet().iterator();
+        while ( usedBytes > maxBytes && iter.hasNext() )
+        {
+            usedBytes -= iter.next().getValue().size;
+            iter.remove();
+            evictions.incrementAndGet();
+        }
+    }
+    /**
+     * Get the MVD in a document, from the cache if possible. If the 
+     * document has no text body its binary body is fetched directly.
+     * @param coll the collection the document came from
+     * @param doc the document, containing docid and maybe body fields
+     * @return the internalised MVD or null if it has no body
+     * @throws DbException if the binary body could not be fetched
+     * @throws MVDException if the binary body could not be decoded
+     */
+    public MVD internalise( String coll, JSONObject doc ) 
+        throws DbException, MVDException
+    {
+        return internalise( coll, doc, null );
+    }
+    /**
+     * Get the cached MVD for a document if it is still current
+     * @param coll the collection the document came from
+     * @param doc the document, containing docid and revision fields
+     * @return the MVD or null if it is not cached
+     */
+    public MVD getCached( String coll, JSONObject doc )
+    {
+        String docid = (String)doc.get( JSONKeys.DOCID );
+        String rev = getRevision( doc );
+        if ( docid == null || rev.length() == 0 )
+            return null;
+        return get( coll, docid, rev );
+    }
+    /**
+     * Get the MVD in a document, from the cache if possible
+     * @param coll the collection the document came from
+     * @param doc the document, containing docid and maybe body fields
+     * @param data the binary body already fetched, or null
+     * @return the internalised MVD or null if it has no body
+     * @throws DbException if the binary body could not be fetched
+     * @throws MVDException if the binary body could not be decoded
+     */
+    public MVD internalise( String coll, JSONObject doc, byte[] data ) 
+        throws DbException, MVDException
+    {
+        String body = null;
+        Object b = doc.get( JSONKeys.BODY );
+        if ( b instanceof byte[] )
+            data = (byte[])b;
+        else
+            body = (String)b;
+        String docid = (String)doc.get( JSONKeys.DOCID );
+        if ( docid == null )
+        {
+            if ( body != null )
+                return MVDFile.internalise( body );
+            else
+                return (data==null)?null:MVDBinary.internalise( data );
+        }
+        String rev = getRevision( doc );
+        MVD mvd = (rev.length()>0)?get( coll, docid, rev ):null;
+        if ( mvd == null )
+        {
+            if ( body != null )
+                mvd = MVDFile.internalise( body );
+            else
+            {
+                if ( data == null )
+                    data = Connector.getConnection().getBodyFromDb( 
+                        coll, docid );
+                if ( data != null )
+                    mvd = MVDBinary.internalise( data );
+            }
+            if ( mvd != null && rev.length() > 0 )
+                put( coll, docid, rev, mvd );
+        }
+        return mvd;
+    }
+    /**
+     * Drop a document, or a whole collection, that has changed
+     * @param coll the collection
+     * @param docid the docid or null for every document in coll
+     */
+    @Override
+    public synchronized void documentChanged( String coll, String docid )
+    {
+        if ( docid != null )
+        {
+            Entry e = map.remove( makeKey(coll,docid) );
+            if ( e != null )
+                usedBytes -= e.size;
+        }
+        else
+        {
+            String prefix = coll+"/";
+            Iterator<Map.Entry<String,Entry>> iter = map.entrySet().iterator();
+            while ( iter.hasNext() )
+            {
+                Map.Entry<String,Entry> me = iter.next();
+                if ( me.getKey().startsWith(prefix) )
+                {
+                    usedBytes -= me.getValue().size;
+                    iter.remove();
+                }
+            }
+        }
+    }
+    /**
+     * Empty the cache
+     */
+    public synchronized void clear()
+    {
+        map.clear();
+        usedBytes = 0;
+    }
+    /**
+     * Report on cache effectiveness
+     * @return a JSON object with hits, misses, evictions and sizes
+     */
+    public synchronized String getStats()
+    {
+        HashMap<String,Object> jObj = new HashMap<String,Object>();
+        jObj.put( "hits", hits.get() );
+        jObj.put( "misses", misses.get() );
+        jObj.put( "evictions", evictions.get() );
+        jObj.put( "entries", map.size() );
+        jObj.put( "bytes", usedBytes );
+        return JSONObject.toJSONString( jObj );
+    }
+}
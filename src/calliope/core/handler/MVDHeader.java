@@ -0,0 +1,102 @@
+/*
+ * This file is part of calliope.core.
+ *
+ *  calliope.core is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  calliope.core is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with calliope.core.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2015
+ */
+
+package calliope.core.handler;
+
+import edu.luc.nmerge.mvd.Base64;
+import edu.luc.nmerge.mvd.MVD;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Read just the group and version tables at the start of an MVD, so 
+ * that its versions can be listed without decoding the pairs and data 
+ * that make up the rest of it. The MVD returned has no pairs.
+ * @author desmond
+ */
+public class MVDHeader 
+{
+    /**
+     * Read the header of an MVD in its base64 text form
+     * @param body the text body of an MVD document
+     * @return an MVD without pairs, or null if the header was unreadable
+     */
+    public static MVD fromText( String body )
+    {
+        try
+        {
+            return read( new Base64.InputStream(new ByteArrayInputStream(
+                body.getBytes("US-ASCII")),Base64.DECODE) );
+        }
+        catch ( Exception e )
+        {
+            return null;
+        }
+    }
+    /**
+     * Read the header of an MVD in binary form
+     * @param data the binary MVD, optionally gzipped
+     * @return an MVD without pairs, or null if the header was unreadable
+     */
+    public static MVD fromBinary( byte[] data )
+    {
+        return read( new ByteArrayInputStream(data) );
+    }
+    /**
+     * Read only as much of a stream as holds the header
+     * @param in a stream of the binary MVD, optionally gzipped
+     * @return an MVD without pairs, or null if the header was unreadable
+     */
+    public static MVD read( InputStream in )
+    {
+        try
+        {
+            BufferedInputStream bis = new BufferedInputStream( in );
+            bis.mark( 2 );
+            int b0 = bis.read();
+            int b1 = bis.read();
+            bis.reset();
+            InputStream src = ( b0 == 0x1f && b1 == 0x8b )
+                ? new GZIPInputStream(bis) : bis;
+            DataInputStream dis = new DataInputStream( src );
+            // magic number then headerSize and four table offsets
+            byte[] fixed = new byte[MVDBinary.FIXED_SIZE];
+            dis.readFully( fixed );
+            MVDBinary.Reader r = new MVDBinary.Reader( fixed, 
+                MVDBinary.MAGIC.length+4 );
+            int groupTable = r.readInt();
+            int versionTable = r.readInt();
+            int pairsTable = r.readInt();
+            if ( groupTable >= pairsTable || versionTable >= pairsTable 
+                || pairsTable < fixed.length )
+                return null;
+            byte[] data = new byte[pairsTable];
+            System.arraycopy( fixed, 0, data, 0, fixed.length );
+            dis.readFully( data, fixed.length, data.length-fixed.length );
+            return MVDBinary.parse( data, false );
+        }
+        catch ( Exception e )
+        {
+            // the caller decodes in full instead, which reports the fault
+            return null;
+        }
+    }
+}
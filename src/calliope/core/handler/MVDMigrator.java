@@ -0,0 +1,126 @@
+/*
+ * This file is part of calliope.core.
+ *
+ *  calliope.core is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  calliope.core is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with calliope.core.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2015
+ */
+
+package calliope.core.handler;
+
+import calliope.core.constants.Database;
+import calliope.core.constants.JSONKeys;
+import calliope.core.database.Connection;
+import calliope.core.database.Connector;
+import calliope.core.database.DbCursor;
+import calliope.core.database.Repository;
+import calliope.core.exception.DbException;
+import java.util.ArrayList;
+import org.json.simple.JSONObject;
+
+/**
+ * Convert the base64 text bodies of stored MVDs into binary bodies, and 
+ * give every stored MVD a revision
+ * @author desmond
+ */
+public class MVDMigrator 
+{
+    /**
+     * Migrate every MVD in a collection that still has a text body or 
+     * no revision
+     * @param conn the database connection
+     * @param coll the collection to migrate
+     * @return the number of documents migrated
+     * @throws DbException 
+     */
+    public static int migrate( Connection conn, String coll ) 
+        throws DbException
+    {
+        int migrated = 0;
+        ArrayList<String> docids = new ArrayList<String>();
+        try ( DbCursor<String> cursor = conn.iterateCollection(coll,
+            JSONKeys.DOCID) )
+        {
+            while ( cursor.hasNext() )
+                docids.add( cursor.next() );
+        }
+        for ( int i=0;i<docids.size();i++ )
+        {
+            String docid = docids.get(i);
+            JSONObject doc = conn.getObjectFromDb( coll, docid, 
+                JSONKeys.FORMAT, JSONKeys.REV );
+            String format = (doc==null)?null:(String)doc.get(JSONKeys.FORMAT);
+            if ( format != null && format.startsWith("MVD") )
+            {
+                try
+                {
+                    // binary bodies are stored compressed, text ones are not
+                    byte[] data = conn.getBodyFromDb( coll, docid );
+                    if ( data != null && !MVDBinary.isGzipped(data) )
+                    {
+                        conn.putBodyToDb( coll, docid, MVDBinary.gzip(data) );
+                        migrated++;
+                    }
+                    else if ( !doc.containsKey(JSONKeys.REV) )
+                    {
+                        // any write stamps a revision, so MVDCache can 
+                        // tell whether its copy is current
+                        conn.updateByField( coll, JSONKeys.DOCID, docid, 
+                            JSONKeys.FORMAT, format );
+                        migrated++;
+                    }
+                }
+                catch ( Exception e )
+                {
+                    System.out.println("failed to migrate "+coll+"/"
+                        +docid+": "+e.getMessage());
+                }
+            }
+        }
+        return migrated;
+    }
+    /**
+     * Migrate the MVDs in a database from the command line
+     * @param args host dbName user password [collection ...]
+     */
+    public static void main( String[] args )
+    {
+        if ( args.length < 4 )
+        {
+            System.out.println("usage: java calliope.core.handler.MVDMigrator"
+                +" host dbName user password [collection ...]");
+            return;
+        }
+        try
+        {
+            Connector.init( Repository.MONGO, args[2], args[3], args[0], 
+                args[1], 0, 0, "" );
+            String[] colls = {Database.CORTEX,Database.CORCODE};
+            if ( args.length > 4 )
+            {
+                colls = new String[args.length-4];
+                System.arraycopy( args, 4, colls, 0, colls.length );
+            }
+            for ( int i=0;i<colls.length;i++ )
+            {
+                int n = migrate( Connector.getConnection(), colls[i] );
+                System.out.println("migrated "+n+" MVDs in "+colls[i]);
+            }
+            Connector.close();
+        }
+        catch ( Exception e )
+        {
+            e.printStackTrace( System.out );
+        }
+    }
+}
@@ -0,0 +1,372 @@
+/*
+ * This file is part of calliope.core.
+ *
+ *  calliope.core is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  calliope.core is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with calliope.core.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2015
+ */
+
+package calliope.core.handler;
+
+import calliope.core.constants.Database;
+import calliope.core.constants.JSONKeys;
+import calliope.core.database.Connector;
+import calliope.core.database.DocumentListener;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * Results computed from whole MVDs, such as the diff matrix and table 
+ * measurements, remembered per document revision. Optionally they are 
+ * also saved in the derived collection so that they survive a restart.
+ * @author desmond
+ */
+public class MVDResults implements DocumentListener
+{
+    /** default maximum number of documents with results in memory */
+    public static int DEFAULT_MAX_ENTRIES = 256;
+    /** key of the revision a saved result was computed from */
+    static String REVISION = "revision";
+    static String DIFFS = "diffs";
+    static String MEASURES = "measures";
+    static MVDResults shared;
+    int maxEntries;
+    volatile boolean persistent;
+    LinkedHashMap<String,Entry> map;
+    /**
+     * The results for one revision of a document. Its fields are guarded 
+     * by the entry itself; loading and saving are serialised by io, so 
+     * that only requests for the same document wait on the database.
+     */
+    static class Entry
+    {
+        final String rev;
+        double[][] diffs;
+        final HashMap<Short,int[]> measures;
+        final Object io;
+        /** true once saved results have been looked for */
+        boolean loaded;
+        /** true if the saved document is known to be of this revision */
+        boolean stored;
+        Entry( String rev )
+        {
+            this.rev = rev;
+            this.measures = new HashMap<Short,int[]>();
+            this.io = new Object();
+        }
+    }
+    /**
+     * Create a store of results
+     * @param maxEntries the maximum number of documents kept in memory
+     */
+    public MVDResults( int maxEntries )
+    {
+        this.maxEntries = maxEntries;
+        this.map = new LinkedHashMap<String,Entry>( 16, 0.75f, true );
+    }
+    /**
+     * Get the store shared by all handlers
+     * @return the shared store, listening for changed documents
+     */
+    public static synchronized MVDResults getShared()
+    {
+        if ( shared == null )
+        {
+            shared = new MVDResults( DEFAULT_MAX_ENTRIES );
+            Connector.addListener( shared );
+        }
+        return shared;
+    }
+    /**
+     * Save results in the derived collection as well as in memory
+     * @param persistent true to save and reload results
+     */
+    public void setPersistent( boolean persistent )
+    {
+        this.persistent = persistent;
+    }
+    static String makeKey( String coll, String docid )
+    {
+        return coll+"/"+docid;
+    }
+    /**
+     * Get the current entry for a document, reloading it if saved. Only 
+     * the lookup holds the lock on the store; the first request for a 
+     * revision reads the database and any others for it wait.
+     * @param key the document's key
+     * @param rev its current revision
+     * @return the entry, which may be new and empty
+     */
+    Entry getEntry( String key, String rev )
+    {
+        Entry e;
+        synchronized ( this )
+        {
+            e = map.get( key );
+            if ( e == null || !e.rev.equals(rev) )
+            {
+                e = new Entry( rev );
+                map.put( key, e );
+                Iterator<String> iter = map.keySet().iterator();
+                while ( map.size() > maxEntries && iter.hasNext() )
+                {
+                    iter.next();
+                    iter.remove();
+                }
+            }
+        }
+        if ( persistent )
+        {
+            synchronized ( e.io )
+            {
+                if ( !e.loaded )
+                {
+                    load( key, e );
+                    e.loaded = true;
+                }
+            }
+        }
+        return e;
+    }
+    /**
+     * Reload saved results if they are not stale
+     * @param key the document's key
+     * @param e the empty entry to fill
+     */
+    void load( String key, Entry e )
+    {
+        try
+        {
+            JSONObject jObj = Connector.getConnection().getObjectFromDb( 
+                Database.DERIVED, key );
+            if ( jObj == null || !e.rev.equals(jObj.get(REVISION)) )
+                return;
+            double[][] diffs = null;
+            JSONArray jDiffs = (JSONArray)jObj.get( DIFFS );
+            if ( jDiffs != null )
+            {
+                diffs = new double[jDiffs.size()][];
+                for ( int i=0;i<diffs.length;i++ )
+                {
+                    JSONArray row = (JSONArray)jDiffs.get(i);
+                    diffs[i] = new double[row.size()];
+                    for ( int j=0;j<diffs[i].length;j++ )
+                        diffs[i][j] = (row.get(j)==null)?Double.NaN
+                            :((Number)row.get(j)).doubleValue();
+                }
+            }
+            HashMap<Short,int[]> measures = new HashMap<Short,int[]>();
+            JSONObject jMeasures = (JSONObject)jObj.get( MEASURES );
+            if ( jMeasures != null )
+            {
+                for ( Object base : jMeasures.keySet() )
+                {
+                    JSONArray jArr = (JSONArray)jMeasures.get( base );
+                    int[] stats = new int[jArr.size()];
+                    for ( int i=0;i<stats.length;i++ )
+                        stats[i] = ((Number)jArr.get(i)).intValue();
+                    measures.put( Short.valueOf((String)base), stats );
+                }
+            }
+            synchronized ( e )
+            {
+                // keep anything computed while the load was under way
+                if ( e.diffs == null )
+                    e.diffs = diffs;
+                for ( Map.Entry<Short,int[]> m : measures.entrySet() )
+                    if ( !e.measures.containsKey(m.getKey()) )
+                        e.measures.put( m.getKey(), m.getValue() );
+            }
+            e.stored = true;
+        }
+        catch ( Exception ex )
+        {
+            System.out.println("MVDResults: failed to load "+key+": "
+                +ex.getMessage());
+        }
+    }
+    static ArrayList<ArrayList<Double>> toJSON( double[][] diffs )
+    {
+        ArrayList<ArrayList<Double>> jDiffs 
+            = new ArrayList<ArrayList<Double>>( diffs.length );
+        for ( int i=0;i<diffs.length;i++ )
+        {
+            ArrayList<Double> row = new ArrayList<Double>( diffs[i].length );
+            for ( int j=0;j<diffs[i].length;j++ )
+            {
+                // JSON has no NaN or infinity
+                double d = diffs[i][j];
+                row.add( (Double.isNaN(d)||Double.isInfinite(d))?null:d );
+            }
+            jDiffs.add( row );
+        }
+        return jDiffs;
+    }
+    static ArrayList<Integer> toJSON( int[] stats )
+    {
+        ArrayList<Integer> jArr = new ArrayList<Integer>( stats.length );
+        for ( int i=0;i<stats.length;i++ )
+            jArr.add( stats[i] );
+        return jArr;
+    }
+    /**
+     * Save one result for a document. The first save for a revision 
+     * writes the whole document, replacing any stale one; later saves 
+     * set only the field that changed.
+     * @param key the document's key
+     * @param e its results
+     * @param field the field to save
+     * @param value its value as JSON
+     */
+    void save( String key, Entry e, String field, Object value )
+    {
+        synchronized ( e.io )
+        {
+            try
+            {
+                if ( e.stored )
+                    Connector.getConnection().updateByField( Database.DERIVED, 
+                        JSONKeys.DOCID, key, field, value );
+                else
+                {
+                    HashMap<String,Object> jObj = new HashMap<String,Object>();
+                    jObj.put( REVISION, e.rev );
+                    synchronized ( e )
+                    {
+                        if ( e.diffs != null )
+                            jObj.put( DIFFS, toJSON(e.diffs) );
+                        HashMap<String,Object> jMeasures 
+                            = new HashMap<String,Object>();
+                        for ( Map.Entry<Short,int[]> m 
+                            : e.measures.entrySet() )
+                            jMeasures.put( m.getKey().toString(), 
+                                toJSON(m.getValue()) );
+                        jObj.put( MEASURES, jMeasures );
+                    }
+                    Connector.getConnection().putToDb( Database.DERIVED, key, 
+                        JSONObject.toJSONString(jObj) );
+                    e.stored = true;
+                }
+            }
+            catch ( Exception ex )
+            {
+                System.out.println("MVDResults: failed to save "+key+": "
+                    +ex.getMessage());
+            }
+        }
+    }
+    /**
+     * Get a remembered diff matrix
+     * @param coll the collection of the MVD
+     * @param docid the docid of the MVD
+     * @param rev the current revision of the MVD
+     * @return a copy of the matrix or null if not computed for that revision
+     */
+    public double[][] getDiffMatrix( String coll, String docid, String rev )
+    {
+        Entry e = getEntry( makeKey(coll,docid), rev );
+        synchronized ( e )
+        {
+            return (e.diffs==null)?null:copy( e.diffs );
+        }
+    }
+    /**
+     * Remember a diff matrix
+     * @param coll the collection of the MVD
+     * @param docid the docid of the MVD
+     * @param rev the revision of the MVD it was computed from
+     * @param diffs the matrix
+     */
+    public void putDiffMatrix( String coll, String docid, String rev, 
+        double[][] diffs )
+    {
+        String key = makeKey( coll, docid );
+        Entry e = getEntry( key, rev );
+        synchronized ( e )
+        {
+            e.diffs = copy( diffs );
+        }
+        if ( persistent )
+            save( key, e, DIFFS, toJSON(diffs) );
+    }
+    /**
+     * Get a remembered table measurement
+     * @param coll the collection of the MVD
+     * @param docid the docid of the MVD
+     * @param rev the current revision of the MVD
+     * @param base the base version it was measured against
+     * @return a copy of the measurement or null if not known
+     */
+    public int[] getMeasure( String coll, String docid, String rev, 
+        short base )
+    {
+        Entry e = getEntry( makeKey(coll,docid), rev );
+        synchronized ( e )
+        {
+            int[] stats = e.measures.get( base );
+            return (stats==null)?null:stats.clone();
+        }
+    }
+    /**
+     * Remember a table measurement
+     * @param coll the collection of the MVD
+     * @param docid the docid of the MVD
+     * @param rev the revision of the MVD it was computed from
+     * @param base the base version it was measured against
+     * @param stats the measurement
+     */
+    public void putMeasure( String coll, String docid, String rev, 
+        short base, int[] stats )
+    {
+        String key = makeKey( coll, docid );
+        Entry e = getEntry( key, rev );
+        synchronized ( e )
+        {
+            e.measures.put( base, stats.clone() );
+        }
+        if ( persistent )
+            save( key, e, MEASURES+"."+base, toJSON(stats) );
+    }
+    static double[][] copy( double[][] matrix )
+    {
+        double[][] c = new double[matrix.length][];
+        for ( int i=0;i<matrix.length;i++ )
+            c[i] = matrix[i].clone();
+        return c;
+    }
+    /**
+     * Forget the results for a changed document or collection. Saved 
+     * results are left alone: their revision shows they are stale.
+     * @param coll the collection
+     * @param docid the docid or null for every document in coll
+     */
+    @Override
+    public synchronized void documentChanged( String coll, String docid )
+    {
+        if ( docid != null )
+            map.remove( makeKey(coll,docid) );
+        else
+        {
+            String prefix = coll+"/";
+            Iterator<String> iter = map.keySet().iterator();
+            while ( iter.hasNext() )
+                if ( iter.next().startsWith(prefix) )
+                    iter.remove();
+        }
+    }
+}
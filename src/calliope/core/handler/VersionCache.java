@@ -0,0 +1,185 @@
+/*
+ * This file is part of calliope.core.
+ *
+ *  calliope.core is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  calliope.core is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with calliope.core.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2015
+ */
+
+package calliope.core.handler;
+
+import calliope.core.database.Connector;
+import calliope.core.database.DocumentListener;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.json.simple.JSONObject;
+
+/**
+ * A bounded cache of version texts reconstructed from MVDs, keyed by 
+ * collection, docid, version id and document revision. The texts are 
+ * immutable Strings, so one copy can be shared by every request.
+ * @author desmond
+ */
+public class VersionCache implements DocumentListener
+{
+    /** default maximum number of chars cached */
+    public static long DEFAULT_MAX_CHARS = 16*1024*1024;
+    static VersionCache shared;
+    long maxChars;
+    long usedChars;
+    LinkedHashMap<String,Entry> map;
+    AtomicLong hits;
+    AtomicLong misses;
+    static class Entry
+    {
+        String rev;
+        String text;
+        Entry( String rev, String text )
+        {
+            this.rev = rev;
+            this.text = text;
+        }
+    }
+    /**
+     * Create a cache
+     * @param maxChars the maximum number of chars to cache
+     */
+    public VersionCache( long maxChars )
+    {
+        this.maxChars = maxChars;
+        this.map = new LinkedHashMap<String,Entry>( 16, 0.75f, true );
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+    }
+    /**
+     * Get the cache shared by all handlers
+     * @return the shared cache, listening for changed documents
+     */
+    public static synchronized VersionCache getShared()
+    {
+        if ( shared == null )
+        {
+            shared = new VersionCache( DEFAULT_MAX_CHARS );
+            Connector.addListener( shared );
+        }
+        return shared;
+    }
+    /**
+     * Change the bound on the cache, evicting if necessary
+     * @param maxChars the maximum number of chars to cache
+     */
+    public synchronized void setMaxChars( long maxChars )
+    {
+        this.maxChars = maxChars;
+        evict();
+    }
+    static String makeKey( String coll, String docid, int vid )
+    {
+        return coll+"/"+docid+"#"+vid;
+    }
+    /**
+     * Look up a version
+     * @param coll the collection of its MVD
+     * @param docid the docid of its MVD
+     * @param rev the revision of the MVD now in the database
+     * @param vid the version id
+     * @return the version text or null if not cached for that revision
+     */
+    public synchronized String get( String coll, String docid, String rev, 
+        int vid )
+    {
+        Entry e = map.get( makeKey(coll,docid,vid) );
+        if ( e != null && e.rev.equals(rev) )
+        {
+            hits.incrementAndGet();
+            return e.text;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+    /**
+     * Add a version to the cache
+     * @param coll the collection of its MVD
+     * @param docid the docid of its MVD
+     * @param rev the revision of the MVD it came from
+     * @param vid the version id
+     * @param text the version's text
+     */
+    public synchronized void put( String coll, String docid, String rev, 
+        int vid, String text )
+    {
+        if ( text.length() > maxChars )
+            return;
+        Entry old = map.put( makeKey(coll,docid,vid), new Entry(rev,text) );
+        if ( old != null )
+            usedChars -= old.text.length();
+        usedChars += text.length();
+        evict();
+    }
+    /**
+     * Drop least recently used versions until under the bound
+     */
+    void evict()
+    {
+        Iterator<Map.Entry<String,Entry>> iter = map.entrySet().iterator();
+        while ( usedChars > maxChars && iter.hasNext() )
+        {
+            usedChars -= iter.next().getValue().text.length();
+            iter.remove();
+        }
+    }
+    /**
+     * Drop the versions of a changed document, or a whole collection
+     * @param coll the collection
+     * @param docid the docid or null for every document in coll
+     */
+    @Override
+    public synchronized void documentChanged( String coll, String docid )
+    {
+        String prefix = (docid==null)?coll+"/":coll+"/"+docid+"#";
+        Iterator<Map.Entry<String,Entry>> iter = map.entrySet().iterator();
+        while ( iter.hasNext() )
+        {
+            Map.Entry<String,Entry> me = iter.next();
+            if ( me.getKey().startsWith(prefix) )
+            {
+                usedChars -= me.getValue().text.length();
+                iter.remove();
+            }
+        }
+    }
+    /**
+     * Empty the cache
+     */
+    public synchronized void clear()
+    {
+        map.clear();
+        usedChars = 0;
+    }
+    /**
+     * Report on cache effectiveness
+     * @return a JSON object with hits, misses and sizes
+     */
+    public synchronized String getStats()
+    {
+        HashMap<String,Object> jObj = new HashMap<String,Object>();
+        jObj.put( "hits", hits.get() );
+        jObj.put( "misses", misses.get() );
+        jObj.put( "entries", map.size() );
+        jObj.put( "chars", usedChars );
+        return JSONObject.toJSONString( jObj );
+    }
+}
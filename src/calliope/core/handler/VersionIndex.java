@@ -0,0 +1,217 @@
+/*
+ * This file is part of calliope.core.
+ *
+ *  calliope.core is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  calliope.core is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with calliope.core.  If not, see <http://www.gnu.org/licenses/>.
+ *  (c) copyright Desmond Schmidt 2015
+ */
+
+package calliope.core.handler;
+
+import edu.luc.nmerge.mvd.MVD;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.StringTokenizer;
+
+/**
+ * An index of the versions of an MVD by full path, path prefix and short
+ * name within group. Every lookup is worked out when the index is built,
+ * matching the MVD's own rules, so the index is immutable afterwards and
+ * may be shared between requests without locking.
+ * @author desmond
+ */
+final class VersionIndex
+{
+    /** full version paths, indexed by vid-1 */
+    final String[] paths;
+    /** every prefix of every path mapped to the first vid that has it */
+    final HashMap<String,Short> byPrefix;
+    /** every full path mapped to the version it resolves to */
+    final HashMap<String,Short> byPath;
+    /** group paths mapped to group ids, 0 being the top level */
+    final HashMap<String,Short> byGroupPath;
+    /** per group id, every suffix of its short names mapped to a vid */
+    final ArrayList<HashMap<String,Short>> bySuffix;
+    /** names and parents of the groups, indexed by group id-1 */
+    final String[] groupNames;
+    final short[] groupParents;
+    /** approximate heap used by the index */
+    final long size;
+    /**
+     * Index the versions of an MVD
+     * @param mvd the MVD, which need only have its version table
+     */
+    VersionIndex( MVD mvd )
+    {
+        int numGroups = mvd.numGroups();
+        int numVersions = mvd.numVersions();
+        long bytes = 0;
+        this.groupNames = new String[numGroups];
+        this.groupParents = new short[numGroups];
+        for ( short i=1;i<=numGroups;i++ )
+        {
+            groupNames[i-1] = mvd.getGroupName( i );
+            groupParents[i-1] = mvd.getGroupParent( i );
+        }
+        this.byGroupPath = new HashMap<String,Short>();
+        byGroupPath.put( "", (short)0 );
+        byGroupPath.put( "/", (short)0 );
+        for ( short i=1;i<=numGroups;i++ )
+        {
+            String path = groupPath( i );
+            if ( !byGroupPath.containsKey(path) )
+            {
+                byGroupPath.put( path, resolveGroup(path) );
+                bytes += 48 + 2 * path.length();
+            }
+        }
+        this.bySuffix = new ArrayList<HashMap<String,Short>>( numGroups+1 );
+        for ( int i=0;i<=numGroups;i++ )
+            bySuffix.add( new HashMap<String,Short>() );
+        this.paths = new String[numVersions];
+        this.byPrefix = new HashMap<String,Short>();
+        for ( short i=1;i<=numVersions;i++ )
+        {
+            short group = mvd.getGroupForVersion( i );
+            String shortName = mvd.getVersionShortName( i );
+            // MVD.getVersionId loops forever on nested groups
+            String path = groupPath( group )+"/"+shortName;
+            paths[i-1] = path;
+            for ( int j=0;j<=path.length();j++ )
+            {
+                String prefix = path.substring( 0, j );
+                if ( !byPrefix.containsKey(prefix) )
+                {
+                    byPrefix.put( prefix, i );
+                    bytes += 48 + 2 * j;
+                }
+            }
+            HashMap<String,Short> names = bySuffix.get( group );
+            for ( int j=0;j<=shortName.length();j++ )
+            {
+                String suffix = shortName.substring( j );
+                if ( !names.containsKey(suffix) )
+                {
+                    names.put( suffix, i );
+                    bytes += 48 + 2 * suffix.length();
+                }
+            }
+        }
+        this.byPath = new HashMap<String,Short>();
+        for ( int i=0;i<paths.length;i++ )
+        {
+            if ( !byPath.containsKey(paths[i]) )
+                byPath.put( paths[i], resolvePath(paths[i]) );
+        }
+        this.size = bytes + 64 * numVersions;
+    }
+    /**
+     * Build the path of a group from its ancestors' names
+     * @param group the group id from 1
+     * @return its path, starting with "/"
+     */
+    private String groupPath( short group )
+    {
+        StringBuilder sb = new StringBuilder();
+        // guard against a corrupt table looping through its parents
+        for ( int n=0;group>0&&n<groupNames.length;n++ )
+        {
+            sb.insert( 0, groupNames[group-1] );
+            sb.insert( 0, "/" );
+            group = groupParents[group-1];
+        }
+        return sb.toString();
+    }
+    /**
+     * Resolve a group path the way the MVD does: each name chooses the
+     * first group of that name under the group chosen so far, and a name
+     * that matches none is skipped
+     * @param groups the group path
+     * @return the group id or 0 for the top level
+     */
+    private short resolveGroup( String groups )
+    {
+        StringTokenizer st = new StringTokenizer( groups, "/" );
+        short gid = 0;
+        while ( st.hasMoreTokens() )
+        {
+            String name = st.nextToken();
+            for ( int i=0;i<groupNames.length;i++ )
+            {
+                if ( groupNames[i].equals(name) && groupParents[i] == gid )
+                {
+                    gid = (short)(i+1);
+                    break;
+                }
+            }
+        }
+        return gid;
+    }
+    /**
+     * Resolve a full version path by splitting it into groups and name
+     * @param path the full path
+     * @return its vid or 0 if not found
+     */
+    private short resolvePath( String path )
+    {
+        int pos = path.lastIndexOf("/");
+        if ( pos != -1 )
+            return getByNameAndGroup( path.substring(pos+1),
+                path.substring(0,pos) );
+        else
+            return getByNameAndGroup( path, "" );
+    }
+    /**
+     * Get the full path of a version
+     * @param vid the version id from 1
+     * @return its path or null if out of range
+     */
+    String getPath( int vid )
+    {
+        return ( vid >= 1 && vid <= paths.length )?paths[vid-1]:null;
+    }
+    /**
+     * Find the first version whose path starts with a prefix
+     * @param prefix the start of a version path
+     * @return its vid or 0 if there is none
+     */
+    short getByPrefix( String prefix )
+    {
+        Short vid = byPrefix.get( prefix );
+        return (vid==null)?0:vid;
+    }
+    /**
+     * Find the first version in a group whose short name ends with a name
+     * @param shortName the version's short name
+     * @param groups its group path
+     * @return its vid or 0 if not found
+     */
+    short getByNameAndGroup( String shortName, String groups )
+    {
+        Short gid = byGroupPath.get( groups );
+        HashMap<String,Short> names = bySuffix.get(
+            (gid!=null)?gid:resolveGroup(groups) );
+        Short vid = names.get( shortName );
+        return (vid==null)?0:vid;
+    }
+    /**
+     * Find a version by its full path
+     * @param path the group path and short name separated by "/"
+     * @return its vid or 0 if not found
+     */
+    short getByPath( String path )
+    {
+        Short vid = byPath.get( path );
+        return (vid!=null)?vid:resolvePath( path );
+    }
+}
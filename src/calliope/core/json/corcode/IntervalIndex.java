@@ -0,0 +1,159 @@
+/* This file is part of calliope.
+ *
+ *  calliope is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  calliope is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with calliope.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package calliope.core.json.corcode;
+
+/**
+ * An interval tree over ranges sorted by offset. The tree is implicit:
+ * the root of each slice of the ranges is its middle one, which also
+ * holds the greatest end of any range in the slice. Finding the k ranges
+ * that overlap a section takes O(log n + k) time, however deeply the
+ * ranges nest.
+ * @author desmond
+ */
+class IntervalIndex
+{
+    /** offsets and lengths of all the ranges in the table */
+    final int[] offsets;
+    final int[] lens;
+    /** table indices of the ranges indexed, or null for all of them */
+    final int[] members;
+    /** number of ranges indexed */
+    final int size;
+    /** greatest end in the slice each position is the root of */
+    final int[] maxEnds;
+    /**
+     * Collects the indices of the ranges found
+     */
+    static class Hits
+    {
+        int[] items;
+        int size;
+        int limit;
+        Hits( int limit )
+        {
+            this.items = new int[Math.min(limit,16)];
+            this.limit = limit;
+        }
+        void add( int index )
+        {
+            if ( size == items.length )
+            {
+                int[] newItems = new int[size*2];
+                System.arraycopy( items, 0, newItems, 0, size );
+                items = newItems;
+            }
+            items[size++] = index;
+        }
+        boolean full()
+        {
+            return size >= limit;
+        }
+        int[] toArray()
+        {
+            int[] arr = new int[size];
+            System.arraycopy( items, 0, arr, 0, size );
+            return arr;
+        }
+    }
+    /**
+     * Build an index
+     * @param offsets the offsets of the ranges in the table, ascending
+     * @param lens the lengths of the ranges in the table
+     * @param members the table indices of the ranges to index, ascending,
+     * or null to index the first size ranges
+     * @param size the number of ranges to index
+     */
+    IntervalIndex( int[] offsets, int[] lens, int[] members, int size )
+    {
+        this.offsets = offsets;
+        this.lens = lens;
+        this.members = members;
+        this.size = size;
+        this.maxEnds = new int[size];
+        build( 0, size );
+    }
+    /**
+     * Get the table index of the range at a position in the index
+     * @param pos the position
+     * @return the range's index in the table
+     */
+    int index( int pos )
+    {
+        return (members==null)?pos:members[pos];
+    }
+    /**
+     * Work out the greatest end of each slice
+     * @param lo the first position in the slice
+     * @param hi the position after the last
+     * @return the greatest end in the slice
+     */
+    int build( int lo, int hi )
+    {
+        if ( lo >= hi )
+            return Integer.MIN_VALUE;
+        int mid = (lo+hi)>>>1;
+        int i = index( mid );
+        int max = offsets[i]+lens[i];
+        int left = build( lo, mid );
+        int right = build( mid+1, hi );
+        if ( left > max )
+            max = left;
+        if ( right > max )
+            max = right;
+        maxEnds[mid] = max;
+        return max;
+    }
+    /**
+     * Find the ranges in a slice that overlap a section, in order
+     * @param lo the first position in the slice
+     * @param hi the position after the last
+     * @param offset the start of the section
+     * @param end the end of the section
+     * @param hits add the table indices of the ranges found to this
+     */
+    void search( int lo, int hi, int offset, int end, Hits hits )
+    {
+        while ( lo < hi && !hits.full() )
+        {
+            int mid = (lo+hi)>>>1;
+            // no range in the slice reaches the section
+            if ( maxEnds[mid] <= offset )
+                return;
+            search( lo, mid, offset, end, hits );
+            int i = index( mid );
+            // this range and those after it start beyond the section
+            if ( hits.full() || offsets[i] >= end )
+                return;
+            if ( offsets[i]+lens[i] > offset )
+                hits.add( i );
+            lo = mid+1;
+        }
+    }
+    /**
+     * Find the ranges that overlap a section
+     * @param offset the absolute offset of the section
+     * @param length the length of the section
+     * @param limit the most ranges to find
+     * @return the table indices of the ranges found, in document order
+     */
+    int[] find( int offset, int length, int limit )
+    {
+        Hits hits = new Hits( limit );
+        search( 0, size, offset, offset+length, hits );
+        return hits.toArray();
+    }
+}
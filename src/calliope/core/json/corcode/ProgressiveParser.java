@@ -16,106 +16,304 @@
 
 package calliope.core.json.corcode;
 import calliope.core.exception.JSONException;
-import java.util.Stack;
 import java.util.ArrayList;
-import java.util.Random;
 import org.json.simple.JSONObject;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Parse a CorCode bit by bit, preserving internal state between calls.
+ * Keys and values are read into reused buffers and the JSON tree is only
+ * built if asked for, so reporting ranges allocates almost nothing. A
+ * RangeHandler gets each range in full, built only while it is read.
  * @author desmond
  */
-public class ProgressiveParser 
+public class ProgressiveParser
 {
+    /** seen flags for the reloff and len keys of an object */
+    static final byte RELOFF_SEEN = 1;
+    static final byte LEN_SEEN = 2;
+    /** set if reloff or len was not an integer */
+    static final byte BAD_VALUE = 4;
+    static final char[] RELOFF = "reloff".toCharArray();
+    static final char[] LEN = "len".toCharArray();
+    static final char[] NAME = "name".toCharArray();
+    static final char[] REMOVED = "removed".toCharArray();
+    static final char[] ANNOTATIONS = "annotations".toCharArray();
+    static final char[] STYLE = "style".toCharArray();
+    static final char[] FORMAT = "format".toCharArray();
+    /** size of the buffer that streamed input is decoded into */
+    static final int INPUT_SIZE = 8192;
     /** current absolute offset of last fully-defined range */
     int currentOffset;
     /** represents internal state of parser */
     int state;
     /** notify this object when a range has been read */
     RangeComplete rc;
+    /** or give this each range in full */
+    RangeHandler rh;
+    /** the range being read for rh, or null */
+    Range range;
+    /** depth of the range being read and of its annotations array */
+    int rangeLevel;
+    int annotationsLevel;
+    /** true if the JSON tree is built as well as the ranges reported */
+    boolean buildObjects;
     /** current key being built up */
-    StringBuilder currentKey;
-    /** current literal value being built up */
-    StringBuilder currentValue;
-    /** hex representation of char being built up */
-    StringBuilder currentHexChar;
-    /** Current object being built (JSONObject or ArrayList<Object>) */
-    Object currentObject;
-    /** stack of nested objects */
-    Stack<Object> stack;
+    char[] key;
+    int keyLen;
+    /** current string, number or literal value being built up */
+    char[] value;
+    int valueLen;
+    /** value of the hex char being read and how many digits it has */
+    int hexValue;
+    int hexDigits;
+    /** depth of the innermost open object or array, -1 if none */
+    int depth;
+    /** true for each open array, false for each open object */
+    boolean[] arrays;
+    /** reloff and len of each open object and which have been seen */
+    int[] reloffs;
+    int[] lens;
+    byte[] seen;
+    /** open JSONObjects and ArrayLists, only if building objects */
+    Object[] objects;
+    /** the outermost object, if building objects */
+    JSONObject document;
+    /** the document's style and format, if given */
+    String style;
+    String format;
+    /** reused buffer for streamed input, made on first use */
+    char[] input;
     /**
-     * Construct a progressive parser
+     * Construct a progressive parser that only reports ranges
      * @param rc inform this as we read each range
      */
     public ProgressiveParser( RangeComplete rc )
+    {
+        this( rc, false );
+    }
+    /**
+     * Construct a progressive parser
+     * @param rc inform this as we read each range
+     * @param buildObjects true if the whole document should be built
+     * for getDocument as well
+     */
+    public ProgressiveParser( RangeComplete rc, boolean buildObjects )
     {
         this.rc = rc;
-        this.stack = new Stack<Object>();
+        this.buildObjects = buildObjects;
+        this.rangeLevel = this.annotationsLevel = -1;
+        this.key = new char[32];
+        this.value = new char[64];
+        this.depth = -1;
+        this.arrays = new boolean[16];
+        this.reloffs = new int[16];
+        this.lens = new int[16];
+        this.seen = new byte[16];
+        if ( buildObjects )
+            this.objects = new Object[16];
+    }
+    /**
+     * Construct a progressive parser that reports whole ranges
+     * @param rh give this each range with its name and annotations
+     */
+    public ProgressiveParser( RangeHandler rh )
+    {
+        this( null, false );
+        this.rh = rh;
+    }
+    /**
+     * Append a char to the current key
+     * @param c the char to append
+     */
+    void appendKey( char c )
+    {
+        if ( keyLen == key.length )
+        {
+            char[] newKey = new char[key.length*2];
+            System.arraycopy( key, 0, newKey, 0, keyLen );
+            key = newKey;
+        }
+        key[keyLen++] = c;
+    }
+    /**
+     * Append a char to the current value
+     * @param c the char to append
+     */
+    void appendValue( char c )
+    {
+        if ( valueLen == value.length )
+        {
+            char[] newValue = new char[value.length*2];
+            System.arraycopy( value, 0, newValue, 0, valueLen );
+            value = newValue;
+        }
+        value[valueLen++] = c;
+    }
+    /**
+     * Does the current key match a name?
+     * @param name the name to compare it with
+     * @return true if they are the same
+     */
+    boolean keyIs( char[] name )
+    {
+        if ( keyLen != name.length )
+            return false;
+        for ( int i=0;i<keyLen;i++ )
+            if ( key[i] != name[i] )
+                return false;
+        return true;
+    }
+    /**
+     * Does the current value match a literal?
+     * @param literal the literal to compare it with
+     * @return true if they are the same
+     */
+    boolean valueIs( String literal )
+    {
+        if ( valueLen != literal.length() )
+            return false;
+        for ( int i=0;i<valueLen;i++ )
+            if ( value[i] != literal.charAt(i) )
+                return false;
+        return true;
     }
     /**
-     * Process a single hex char in a key string
+     * Open a new object or array
+     * @param isArray true if it is an array
+     */
+    void push( boolean isArray )
+    {
+        depth++;
+        if ( depth == arrays.length )
+        {
+            int size = arrays.length*2;
+            boolean[] newArrays = new boolean[size];
+            System.arraycopy( arrays, 0, newArrays, 0, depth );
+            arrays = newArrays;
+            int[] newReloffs = new int[size];
+            System.arraycopy( reloffs, 0, newReloffs, 0, depth );
+            reloffs = newReloffs;
+            int[] newLens = new int[size];
+            System.arraycopy( lens, 0, newLens, 0, depth );
+            lens = newLens;
+            byte[] newSeen = new byte[size];
+            System.arraycopy( seen, 0, newSeen, 0, depth );
+            seen = newSeen;
+            if ( objects != null )
+            {
+                Object[] newObjects = new Object[size];
+                System.arraycopy( objects, 0, newObjects, 0, depth );
+                objects = newObjects;
+            }
+        }
+        arrays[depth] = isArray;
+        seen[depth] = 0;
+    }
+    /**
+     * Is the innermost open container an array?
+     * @return true if it is, false if it is an object
+     */
+    boolean inArray()
+    {
+        return depth >= 0 && arrays[depth];
+    }
+    /**
+     * Is the innermost open container an object?
+     * @return true if it is, false if it is an array
+     */
+    boolean inObject()
+    {
+        return depth >= 0 && !arrays[depth];
+    }
+    /**
+     * Process a single hex char in a key or value string
      * @param token the token being processed
      * @param start the state to start in
      * @param end the next state after reading the hex string
+     * @param inKey true if reading a key, else a value
      * @return the new state (or the same one)
      * @throws JSONException if the syntax was wrong
      */
-    int readHex( char token, int start, int end ) throws JSONException
+    int readHex( char token, int start, int end, boolean inKey )
+        throws JSONException
     {
         int s = start;
-        if ( Character.isDigit(token)
-            || (token<='F'&&token>='A') 
-            || (token>='a'&&token<='f') )
+        int digit;
+        if ( token >= '0' && token <= '9' )
+            digit = token-'0';
+        else if ( token <= 'F' && token >= 'A' )
+            digit = token-'A'+10;
+        else if ( token >= 'a' && token <= 'f' )
+            digit = token-'a'+10;
+        else
+            throw new JSONException("invalid hex char "+token );
+        hexValue = hexValue*16+digit;
+        if ( ++hexDigits == 4 )
         {
-            if ( currentHexChar == null )
-                currentHexChar = new StringBuilder();
-            if ( currentHexChar.length() == 3 )
-            {
-                currentHexChar.append( token );
-                int value = Integer.parseInt(
-                    currentHexChar.toString(),16);
-                currentKey.append( (char)value );
-                currentHexChar = null;
-                s = end;
-            }
+            if ( inKey )
+                appendKey( (char)hexValue );
             else
-                currentHexChar.append( token );
+                appendValue( (char)hexValue );
+            hexValue = hexDigits = 0;
+            s = end;
         }
-        else
-            throw new JSONException("invalid hex char "+token );
         return s;
     }
-    /** 
-     * Process a single escaped character in a key name
+    /**
+     * Process a single escaped character in a key or value string
      * @param token the character
      * @param hex the state to enter for escaped hex chars
      * @param end the state to enter when we're finished
+     * @param inKey true if reading a key, else a value
      * @return the new state
      */
-    int readEscaped( char token, int hex, int end )
+    int readEscaped( char token, int hex, int end, boolean inKey )
     {
         int s = end;
-        if ( currentKey == null )
-            currentKey = new StringBuilder();
+        char c = 0;
         if ( token == '"' )
-            currentKey.append( '"' );
+            c = '"';
         else if ( token == '\\' )
-            currentKey.append('\\');
+            c = '\\';
+        else if ( token == '/' )
+            c = '/';
         else if ( token == 'b' )
-            currentKey.append( '\b' );
+            c = '\b';
         else if ( token == 'f')
-            currentKey.append('\f');
+            c = '\f';
         else if ( token == 'n')
-            currentKey.append('\n');
+            c = '\n';
         else if ( token == 'r')
-            currentKey.append('\r');
+            c = '\r';
         else if ( token == 't')
-            currentKey.append('\t');
+            c = '\t';
         else if ( token == 'u' )
+        {
+            hexValue = hexDigits = 0;
             s = hex;
-        return s;          
+        }
+        if ( c != 0 )
+        {
+            if ( inKey )
+                appendKey( c );
+            else
+                appendValue( c );
+        }
+        return s;
     }
     /**
      * Look for a colon or comma
@@ -124,39 +322,105 @@ public class ProgressiveParser
      * @param start the state to stay in if no punctuation
      * @param end the state to move to if punctuation found
      * @return the new state
+     * @throws JSONException if something else was found
      */
     int readPunctuation( char token, char punctuation, int start, int end )
+        throws JSONException
     {
         int s = start;
         if ( token == punctuation )
             s = end;
         else if ( !Character.isWhitespace(token) )
+            throw new JSONException("expected "+punctuation+" but found "
+                +token);
+        return s;
+    }
+    /**
+     * Note a value stored in the current object under reloff or len
+     * @param number the value if it was an integer
+     * @param isInt true if the value was an integer
+     */
+    void noteValue( int number, boolean isInt )
+    {
+        if ( keyIs(RELOFF) )
         {
-            s = -1;
-            System.out.println("expected "+punctuation+" but found "+token);
+            reloffs[depth] = number;
+            seen[depth] |= RELOFF_SEEN;
         }
-        return s;
+        else if ( keyIs(LEN) )
+        {
+            lens[depth] = number;
+            seen[depth] |= LEN_SEEN;
+        }
+        else
+            return;
+        if ( !isInt )
+            seen[depth] |= BAD_VALUE;
     }
-    /*
-     * Add the currently defined key, value string to the current object
+    /**
+     * Is a value needed as an object, not just checked?
+     * @return true if building objects or the value belongs to a range
      */
-    @SuppressWarnings("unchecked")
-    void addStringToCurrent()
+    boolean materialise()
     {
-        if ( currentObject instanceof JSONObject )
+        return buildObjects || depth == 0 || (range != null 
+            && (depth == rangeLevel
+            || (annotationsLevel >= 0 && depth == annotationsLevel+1)));
+    }
+    /**
+     * Record a value that is part of the range being read
+     * @param obj the value
+     */
+    void addToRange( Object obj )
+    {
+        if ( depth == rangeLevel )
         {
-            JSONObject doc = (JSONObject) currentObject;
-            doc.put( currentKey.toString(), currentValue.toString() );
-            currentKey = currentValue = null;
+            if ( keyIs(NAME) && obj instanceof String )
+                range.name = (String)obj;
+            else if ( keyIs(REMOVED) && obj instanceof Boolean )
+                range.removed = ((Boolean)obj).booleanValue();
         }
-        else if ( currentObject instanceof ArrayList )
+        else if ( annotationsLevel >= 0 && depth == annotationsLevel+1 )
+            range.addAnnotation( new String(key,0,keyLen), obj );
+    }
+    /**
+     * Add a value to the current object or array
+     * @param obj the value, only used if building objects
+     * @param number the value if it is an integer
+     * @param isInt true if the value is an integer
+     */
+    @SuppressWarnings("unchecked")
+    void store( Object obj, int number, boolean isInt )
+    {
+        if ( inObject() )
         {
-            ArrayList<Object> array = (ArrayList<Object>) currentObject;
-            array.add( currentValue.toString() );
-            currentValue = null;
+            noteValue( number, isInt );
+            if ( range != null && obj != null )
+                addToRange( obj );
+            else if ( depth == 0 && obj instanceof String )
+            {
+                if ( keyIs(STYLE) )
+                    style = (String)obj;
+                else if ( keyIs(FORMAT) )
+                    format = (String)obj;
+            }
+            if ( buildObjects )
+                ((JSONObject)objects[depth]).put( new String(key,0,keyLen),
+                    obj );
+            keyLen = 0;
         }
+        else if ( inArray() && buildObjects )
+            ((ArrayList<Object>)objects[depth]).add( obj );
+        valueLen = 0;
     }
-    /** 
+    /*
+     * Add the currently defined value string to the current object
+     */
+    void addStringToCurrent()
+    {
+        store( (materialise())?new String(value,0,valueLen):null, 0, false );
+    }
+    /**
      * Read one char in a value string
      * @param token the char in question
      * @param start stay in this state unless string ends or error
@@ -174,15 +438,11 @@ public class ProgressiveParser
             addStringToCurrent();
             s = end;
         }
-        else 
-        {
-            if ( currentValue == null )
-                currentValue = new StringBuilder();
-            currentValue.append( token );
-        }
+        else
+            appendValue( token );
         return s;
     }
-    /** 
+    /**
      * Read one char in a key string
      * @param token the char in question
      * @param start start in this state
@@ -197,16 +457,43 @@ public class ProgressiveParser
             s = escape;
         else if ( token == '"' )
             s = end;
-        else 
+        else
+            appendKey( token );
+        return s;
+    }
+    /**
+     * Open an object or array as the next value in the current one
+     * @param isArray true if it is an array
+     */
+    @SuppressWarnings("unchecked")
+    void open( boolean isArray )
+    {
+        Object obj = null;
+        if ( buildObjects )
         {
-            if ( currentKey == null )
-                currentKey = new StringBuilder();
-            currentKey.append( token );
+            if ( isArray )
+                obj = new ArrayList<Object>();
+            else
+                obj = new JSONObject();
+        }
+        boolean annotations = isArray && range != null 
+            && depth == rangeLevel && keyIs(ANNOTATIONS);
+        boolean startRange = !isArray && rh != null && range == null 
+            && inArray();
+        store( obj, 0, false );
+        push( isArray );
+        if ( buildObjects )
+            objects[depth] = obj;
+        if ( annotations )
+            annotationsLevel = depth;
+        else if ( startRange )
+        {
+            range = new Range( null );
+            rangeLevel = depth;
         }
-        return s;
     }
     /**
-     * Read the first character of a value that decides 
+     * Read the first character of a value that decides
      * what value type it is
      * @param token the token in question
      * @param start the state to stay in when you see white space
@@ -220,81 +507,47 @@ public class ProgressiveParser
      * @return the new state
      * @throws a JSONExcpetion if there was a syntax error
      */
-    @SuppressWarnings("unchecked")
-    int readValueStart( char token, int start, int string, int nullState, 
+    int readValueStart( char token, int start, int string, int nullState,
         int trueState, int falseState, int array, int object, int number )
             throws JSONException
     {
         int s = start;
         if ( Character.isWhitespace(token) )
             return s;
-        else if ( token == '"' )
-        {
-            // create value immediately because it might be empty
-            currentValue = new StringBuilder();
+        valueLen = 0;
+        if ( token == '"' )
             s = string;
-        }
         else if ( token == '[' )
         {
-            stack.push( currentObject );
-            if ( currentObject instanceof ArrayList )
-            {
-                ArrayList list = (ArrayList)currentObject;
-                currentObject = new ArrayList<Object>();
-                list.add( currentObject );
-            }
-            else
-            {
-                JSONObject doc = (JSONObject) currentObject;
-                currentObject = new ArrayList<Object>();
-                doc.put( currentKey.toString(), currentObject );
-                currentKey = null;
-            }
+            open( true );
             s = array;
         }
         else if ( token == '{' )
         {
-            stack.push( currentObject );
-            if ( currentObject instanceof ArrayList )
-            {
-                ArrayList<Object> list = (ArrayList<Object>)currentObject;
-                currentObject = new JSONObject();
-                list.add( currentObject );
-            }
-            else
-            {
-                JSONObject doc = (JSONObject) currentObject;
-                currentObject = new JSONObject();
-                doc.put( currentKey.toString(), currentObject );
-                currentKey = null;
-            }
+            open( false );
             s = object;
         }
         else if ( token == 'n' )
         {
-            currentValue = new StringBuilder();
-            currentValue.append( token );
+            appendValue( token );
             s = nullState;
         }
         else if ( token == 't' )
         {
+            appendValue( token );
             s = trueState;
-            currentValue = new StringBuilder();
-            currentValue.append( token );
         }
         else if ( token == 'f' )
         {
-            currentValue = new StringBuilder();
-            currentValue.append( token );
+            appendValue( token );
             s = falseState;
         }
-        else if ( Character.isDigit(token)|| token=='-' )
+        else if ( (token>='0'&&token<='9') || token=='-' )
         {
-            currentValue = new StringBuilder();
-            currentValue.append( token );
+            appendValue( token );
             s = number;
         }
-        else 
+        else
         {
             throw new JSONException("expected value but found "+token );
         }
@@ -310,96 +563,95 @@ public class ProgressiveParser
      * @return the next state
      * @throws a JSONException if it failed
      */
-    @SuppressWarnings("unchecked")
-    int readLiteral( char token, String literal, Object obj, int start, 
+    int readLiteral( char token, String literal, Object obj, int start,
         int end ) throws JSONException
     {
         int s = start;
         if ( !Character.isWhitespace(token) )
-        {
-            if ( currentValue == null )
-                currentValue = new StringBuilder();
-            currentValue.append( token );
-        }
+            appendValue( token );
         else
         {
-            if ( currentValue.toString().equals(literal) )
-            {
-                if ( currentObject instanceof ArrayList )
-                    ((ArrayList<Object>)currentObject).add( obj );
-                else if ( currentObject instanceof JSONObject )
-                {
-                    ((JSONObject)currentObject).put(currentKey.toString(), 
-                        obj);
-                    currentKey = null;
-                }
-                currentValue = null;
-            }
+            if ( valueIs(literal) )
+                store( obj, 0, false );
             else
             {
                 throw new JSONException("expected "+literal+" but found "
-                    +currentValue.toString());
+                    +new String(value,0,valueLen));
             }
             s = end;
         }
         return s;
     }
     /**
-     * Store a number saved in currentValue
-     * @throws JSONException 
+     * Parse the integer in the value buffer without making a String
+     * @return the number
+     * @throws JSONException if it is not a valid int
      */
-    @SuppressWarnings("unchecked")
-    void storeNumber() throws JSONException
+    int parseInt() throws JSONException
     {
-        try
-        {
-            Object obj;
-            if ( currentValue.indexOf(".") != -1 )
-                obj = Float.parseFloat(currentValue.toString() );
-            else
-                obj = Integer.parseInt(currentValue.toString() );
-            if ( currentObject instanceof ArrayList )
-                ((ArrayList<Object>)currentObject).add( obj );
-            else if ( currentObject instanceof JSONObject )
-            {
-                ((JSONObject)currentObject).put(currentKey.toString(), 
-                    obj);
-                currentKey = null;
-            }
-            currentValue = null;
-        }
-        catch ( Exception e )
+        int i = 0;
+        boolean negative = valueLen > 0 && value[0] == '-';
+        if ( negative )
+            i++;
+        if ( i == valueLen )
+            throw new JSONException("invalid number "
+                +new String(value,0,valueLen));
+        // accumulate negatively so that MIN_VALUE fits
+        int limit = (negative)?Integer.MIN_VALUE:-Integer.MAX_VALUE;
+        int result = 0;
+        for ( ;i<valueLen;i++ )
         {
-            throw new JSONException( e );
+            int digit = value[i]-'0';
+            if ( digit < 0 || digit > 9 || result < limit/10
+                || result*10 < limit+digit )
+                throw new JSONException("invalid number "
+                    +new String(value,0,valueLen));
+            result = result*10-digit;
         }
+        return (negative)?result:-result;
     }
     /**
-     * Store a literal object
-     * @param thing the thing to store
-     * @throws JSONException 
+     * Store a number saved in the value buffer
+     * @throws JSONException
      */
-    @SuppressWarnings("unchecked")
-    void storeLiteral( Object thing ) throws JSONException
+    void storeNumber() throws JSONException
     {
-        try
+        boolean isFloat = false;
+        for ( int i=0;i<valueLen;i++ )
         {
-            if ( currentObject instanceof ArrayList )
+            if ( value[i] == '.' )
             {
-                ((ArrayList)currentObject).add( thing );
+                isFloat = true;
+                break;
             }
-            else if ( currentObject instanceof JSONObject )
+        }
+        if ( isFloat )
+        {
+            try
             {
-                ((JSONObject)currentObject).put(currentKey.toString(), 
-                    thing);
-                currentKey = null;
+                Float f = Float.parseFloat( new String(value,0,valueLen) );
+                store( f, 0, false );
+            }
+            catch ( Exception e )
+            {
+                throw new JSONException( e );
             }
-            currentValue = null;
         }
-        catch ( Exception e )
+        else
         {
-            throw new JSONException( e );
+            int number = parseInt();
+            store( (materialise())?Integer.valueOf(number):null, number, 
+                true );
         }
     }
+    /**
+     * Store a literal object
+     * @param thing the thing to store
+     */
+    void storeLiteral( Object thing )
+    {
+        store( thing, 0, false );
+    }
     /**
      * Read a number value and assign to the currentObject
      * @param token the token to read
@@ -416,12 +668,31 @@ public class ProgressiveParser
             s = end;
         }
         else
+            appendValue( token );
+        return s;
+    }
+    /**
+     * Close an object, reporting it if it is a range
+     * @param level the depth of the object
+     * @throws JSONException if the range's reloff or len was invalid
+     */
+    void closeObject( int level ) throws JSONException
+    {
+        byte flags = seen[level];
+        if ( (flags&(RELOFF_SEEN|LEN_SEEN)) == (RELOFF_SEEN|LEN_SEEN) )
         {
-            if ( currentValue == null )
-                currentValue = new StringBuilder();
-            currentValue.append( token );
+            if ( (flags&BAD_VALUE) != 0 )
+                throw new JSONException("reloff or len is not an integer");
+            currentOffset += reloffs[level];
+            if ( rc != null )
+                rc.rangeComplete( currentOffset, lens[level] );
+            if ( level == rangeLevel )
+            {
+                range.offset = currentOffset;
+                range.len = lens[level];
+                rh.rangeComplete( range );
+            }
         }
-        return s;
     }
     /**
      * Read the next item in a comma-separated list
@@ -432,9 +703,9 @@ public class ProgressiveParser
      * @param objComma state to look for commas in an object
      * @param arrayComma state to look for commas in an array
      * @return the next state
-     * @throws JSONException 
+     * @throws JSONException
      */
-    int readNextItem( char token, int start, int array, int object, 
+    int readNextItem( char token, int start, int array, int object,
         int objComma, int arrayComma ) throws JSONException
     {
         int s = start;
@@ -442,223 +713,243 @@ public class ProgressiveParser
             return s;
         else if ( token == ',' )
         {
-            if ( currentObject instanceof ArrayList )
+            if ( inArray() )
                 s = array;
             else
                 s = object;
         }
-        else if ( (currentObject instanceof JSONObject && token == '}') 
-            || (currentObject instanceof ArrayList && token == ']') )
+        else if ( (inObject() && token == '}')
+            || (inArray() && token == ']') )
         {
-            Object prevObject = currentObject;
-            if ( stack.empty() )
-            {
-                currentObject = null;
+            int closed = depth--;
+            if ( buildObjects )
+                objects[closed] = null;
+            if ( closed == annotationsLevel )
+                annotationsLevel = -1;
+            if ( depth < 0 )
                 s = -1; // ordinary end of document, no exception
-            }
-            else 
+            else if ( inArray() )
             {
-                currentObject = stack.pop();
-                if ( currentObject instanceof ArrayList )
+                if ( !arrays[closed] )
+                    closeObject( closed );
+                if ( closed == rangeLevel )
                 {
-                    if ( prevObject instanceof JSONObject )
-                    {
-                        JSONObject range = (JSONObject) prevObject;
-                        if ( range.containsKey("reloff") 
-                            && range.containsKey("len") )
-                        {
-                            try
-                            {
-                                int reloff = ((Integer)range.get("reloff")).intValue();
-                                int len = ((Integer)range.get("len")).intValue();
-                                currentOffset += reloff;
-                                this.rc.rangeComplete( currentOffset, len );
-                            }
-                            catch ( Exception e )
-                            {
-                                throw new JSONException( e );
-                            }
-                        }
-                    }
-                    s = arrayComma;
+                    range = null;
+                    rangeLevel = -1;
                 }
-                else
-                    s = objComma;
+                s = arrayComma;
             }
+            else
+                s = objComma;
         }
-        else 
+        else
             throw new JSONException(
                 "expected } or , but found "+token );
         return s;
     }
-    /** 
+    /**
      * Parse a typically short section of character data
      * @param data the data to parse
      * @return true if the data contained a string value
      * @throws JSONException if there was a syntax error
      */
     public boolean parseData( char[] data ) throws JSONException
+    {
+        return parseData( data, 0, data.length );
+    }
+    /**
+     * Parse part of a buffer of character data, which may be reused. 
+     * Call finish once there is no more.
+     * @param data the buffer holding the data
+     * @param offset the offset of the data in the buffer
+     * @param len the number of chars to parse
+     * @return true if the data contained a string value
+     * @throws JSONException if there was a syntax error
+     */
+    public boolean parseData( char[] data, int offset, int len )
+        throws JSONException
     {
         boolean readStringValue = false;
-        for ( int i=0;i<data.length;i++ )
+        int end = offset+len;
+        for ( int i=offset;i<end;i++ )
         {
             if ( state == -1 )
                 break;
+            char token = data[i];
             switch ( state )
             {
                 case 0: // looking for left brace of outermost object
-                    if ( data[i]=='{' )
+                    if ( token=='{' )
                     {
-                        currentObject = new JSONObject();
+                        push( false );
+                        if ( buildObjects )
+                        {
+                            document = new JSONObject();
+                            objects[depth] = document;
+                        }
                         state = 1;
                     }
-                    else if ( !Character.isWhitespace(data[i]) )
-                    {
-                        System.out.println(
-                            "invalid start to JSON document: "+data[i]);
-                        state = -1;
-                    }
+                    else if ( !Character.isWhitespace(token) )
+                        throw new JSONException(
+                            "invalid start to JSON document: "+token);
                     break;
                 case 1:// looking for string-start in key name
-                    if ( data[i] == '"' )
-                        state = 2;
-                    else if ( !Character.isWhitespace(data[i]) )
+                    if ( token == '"' )
                     {
-                        System.out.println("invalid start to key string: "
-                            +data[i]);
-                        state = -1;
+                        keyLen = 0;
+                        state = 2;
                     }
+                    else if ( !Character.isWhitespace(token) )
+                        throw new JSONException("invalid start to key string: "
+                            +token);
                     break;
                 case 2:// reading string in key name
-                    state = readKeyString( data[i], 2, 3, 5 );
+                    state = readKeyString( token, 2, 3, 5 );
                     break;
                 case 3: // escaped character in key name
-                    state = readEscaped( data[i], 4, 2 );
+                    state = readEscaped( token, 4, 2, true );
                     break;
                 case 4: // reading hex value in key string
-                    state = readHex( data[i], 4, 2 );
+                    state = readHex( token, 4, 2, true );
                     break;
                 case 5: // looking for colon
-                    state = readPunctuation( data[i], ':', 5, 6 );
+                    state = readPunctuation( token, ':', 5, 6 );
                     break;
                 case 6: // reading first char of value in object
-                    state = readValueStart( data[i], 6, 7, 10, 11, 12, 15, 
+                    state = readValueStart( token, 6, 7, 10, 11, 12, 24,
                         1, 13 );
                     break;
                 case 7: // reading value string in object
-                    state = readValueString( data[i], 7, 8, 14 );
+                    state = readValueString( token, 7, 8, 14 );
                     readStringValue = true;
                     break;
                 case 8: // reading escaped char in value string in object
-                    state = readEscaped( data[i], 9, 7 );
+                    state = readEscaped( token, 9, 7, false );
                     break;
                 case 9: // reading hex in value string in object
-                    state = readHex( data[i], 9, 7 );
+                    state = readHex( token, 9, 7, false );
                     break;
                 case 10: // read null in object
-                    if ( data[i] == ',' || data[i] == '}' )
+                    if ( token == ',' || token == '}' )
                     {
                         storeLiteral( null );
-                        state = readNextItem( data[i], 14, 15, 1, 14, 23 );
+                        state = readNextItem( token, 14, 15, 1, 14, 23 );
                     }
                     else
-                        state = readLiteral( data[i], "null", null, 10, 14 );
+                        state = readLiteral( token, "null", null, 10, 14 );
                     break;
                 case 11:    // read true in object
-                    if ( data[i] == ',' || data[i] == '}' )
+                    if ( token == ',' || token == '}' )
                     {
                         storeLiteral( true );
-                        state = readNextItem( data[i], 14, 15, 1, 14, 23 );
+                        state = readNextItem( token, 14, 15, 1, 14, 23 );
                     }
                     else
-                        state = readLiteral( data[i], "true", true, 11, 14 );
+                        state = readLiteral( token, "true", true, 11, 14 );
                     break;
                 case 12:    //read false in object
-                    if ( data[i] == ',' || data[i] == '}' )
+                    if ( token == ',' || token == '}' )
                     {
                         storeLiteral( false );
-                        state = readNextItem( data[i], 14, 15, 1, 14, 23 );
+                        state = readNextItem( token, 14, 15, 1, 14, 23 );
                     }
                     else
-                        state = readLiteral( data[i], "false", false, 12, 14 );
+                        state = readLiteral( token, "false", false, 12, 14 );
                     break;
                 case 13:    // reading number in object
-                    if ( data[i] == '}' || data[i] == ',' )
+                    if ( token == '}' || token == ',' )
                     {
                         storeNumber();
-                        state = readNextItem( data[i], 14, 15, 1, 14, 23 );
+                        state = readNextItem( token, 14, 15, 1, 14, 23 );
                     }
                     else
-                        state = readNumber( data[i], 13, 14 );
+                        state = readNumber( token, 13, 14 );
                     break;
                 case 14: // reading comma in object
-                    state = readNextItem( data[i], 14, 15, 1, 14, 23 );
+                    state = readNextItem( token, 14, 15, 1, 14, 23 );
                     break;
                 case 15: // reading a value in an array
-                    state = readValueStart( data[i], 15, 16, 19, 20, 21, 15, 
+                    state = readValueStart( token, 15, 16, 19, 20, 21, 24,
                         1, 22 );
                     break;
                 case 16: // reading value string in array
-                    state = readValueString( data[i], 16, 17, 23 );
+                    state = readValueString( token, 16, 17, 23 );
                     readStringValue = true;
                     break;
                 case 17: // reading escaped char in value string in array
-                    state = readEscaped( data[i], 18, 16 );
+                    state = readEscaped( token, 18, 16, false );
                     break;
                 case 18: // reading hex in value string in array
-                    state = readHex( data[i], 18, 16 );
+                    state = readHex( token, 18, 16, false );
                     break;
                 case 19: // read null in array
-                    if ( data[i] == ']' || data[i] == ',' )
+                    if ( token == ']' || token == ',' )
                     {
                         storeLiteral( null );
-                        state = readNextItem( data[i], 23, 15, 1, 14, 23 );
+                        state = readNextItem( token, 23, 15, 1, 14, 23 );
                     }
                     else
-                        state = readLiteral( data[i], "null", null, 19, 23 );
+                        state = readLiteral( token, "null", null, 19, 23 );
                     break;
                 case 20:    // read true in array
-                    if ( data[i] == ']' || data[i] == ',' )
+                    if ( token == ']' || token == ',' )
                     {
                         storeLiteral( true );
-                        state = readNextItem( data[i], 23, 15, 1, 14, 23 );
+                        state = readNextItem( token, 23, 15, 1, 14, 23 );
                     }
                     else
-                        state = readLiteral( data[i], "true", true, 20, 23 );
+                        state = readLiteral( token, "true", true, 20, 23 );
                     break;
                 case 21:    //read false in array
-                    if ( data[i] == ']' || data[i] == ',' )
+                    if ( token == ']' || token == ',' )
                     {
                         storeLiteral( false );
-                        state = readNextItem( data[i], 23, 15, 1, 14, 23 );
+                        state = readNextItem( token, 23, 15, 1, 14, 23 );
                     }
                     else
-                        state = readLiteral( data[i], "false", false, 21, 23 );
+                        state = readLiteral( token, "false", false, 21, 23 );
                     break;
                 case 22:    // reading number in array
-                    if ( data[i] == ']' || data[i] == ',' )
+                    if ( token == ']' || token == ',' )
                     {
                         storeNumber();
-                        state = readNextItem( data[i], 23, 15, 1, 14, 23 );
+                        state = readNextItem( token, 23, 15, 1, 14, 23 );
                     }
                     else
-                        state = readNumber( data[i], 22, 23 );
+                        state = readNumber( token, 22, 23 );
                     break;
                 case 23:    // looking for comma in array
-                    state = readNextItem( data[i], 23, 15, 1, 14, 23 );
+                    state = readNextItem( token, 23, 15, 1, 14, 23 );
+                    break;
+                case 24:    // reading the first value or end of an array
+                    if ( token == ']' )
+                        state = readNextItem( token, 23, 15, 1, 14, 23 );
+                    else
+                        state = readValueStart( token, 24, 16, 19, 20, 21, 
+                            24, 1, 22 );
                     break;
             }
         }
         return readStringValue;
     }
     /**
-     * Did this parser instance encounter an error?
-     * @return true if it did, else false
+     * Has the outermost object been closed? Syntax errors are thrown, so
+     * the parser only stops early at the end of the document.
+     * @return true if it has, else false
      */
-    boolean inError()
+    boolean isComplete()
     {
         return state == -1;
     }
+    /**
+     * Check that the document was complete once the input has run out
+     * @throws JSONException if it was cut short
+     */
+    public void finish() throws JSONException
+    {
+        if ( !isComplete() )
+            throw new JSONException("unexpected end of JSON document");
+    }
     /**
      * What is the current absolute offset that the ranges specified?
      * @return an int
@@ -667,9 +958,129 @@ public class ProgressiveParser
     {
         return currentOffset;
     }
+    /**
+     * Get the document read so far, if building objects
+     * @return the outermost object or null
+     */
+    public JSONObject getDocument()
+    {
+        return document;
+    }
+    /**
+     * Get the style named at the top of the document
+     * @return the style or null if none has been read
+     */
+    public String getStyle()
+    {
+        return style;
+    }
+    /**
+     * Get the format named at the top of the document
+     * @return the format or null if none has been read
+     */
+    public String getFormat()
+    {
+        return format;
+    }
+    /**
+     * Get the buffer that streamed input is decoded into
+     * @return the buffer, made on first use
+     */
+    char[] inputBuffer()
+    {
+        if ( input == null )
+            input = new char[INPUT_SIZE];
+        return input;
+    }
+    /**
+     * Parse all the characters from a Reader, a buffer at a time. Stops 
+     * reading when the document ends or there is an error.
+     * @param in the reader, which is not closed
+     * @throws JSONException if there was a syntax or read error or the 
+     * input ended before the document did
+     */
+    public void parse( Reader in ) throws JSONException
+    {
+        char[] buf = inputBuffer();
+        try
+        {
+            int n;
+            while ( state != -1 && (n=in.read(buf)) != -1 )
+                parseData( buf, 0, n );
+        }
+        catch ( IOException e )
+        {
+            throw new JSONException( e );
+        }
+        finish();
+    }
+    /**
+     * Parse UTF-8 bytes from a stream, decoding them as they are read
+     * @param in the stream, which is not closed
+     * @throws JSONException if there was a syntax or read error or the 
+     * input ended before the document did
+     */
+    public void parse( InputStream in ) throws JSONException
+    {
+        parse( new InputStreamReader(in,StandardCharsets.UTF_8) );
+    }
+    /**
+     * Parse UTF-8 bytes from a buffer, such as a memory-mapped file,
+     * decoding them a buffer of chars at a time
+     * @param bytes the bytes from their position to their limit, which 
+     * are consumed
+     * @throws JSONException if there was a syntax error or the bytes 
+     * ended before the document did
+     */
+    public void parse( ByteBuffer bytes ) throws JSONException
+    {
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        char[] buf = inputBuffer();
+        CharBuffer chars = CharBuffer.wrap( buf );
+        boolean flushing = false;
+        while ( state != -1 )
+        {
+            CoderResult cr = (flushing)?decoder.flush( chars )
+                :decoder.decode( bytes, chars, true );
+            chars.flip();
+            if ( chars.hasRemaining() )
+                parseData( buf, 0, chars.remaining() );
+            chars.clear();
+            if ( cr.isUnderflow() )
+            {
+                if ( flushing )
+                    break;
+                flushing = true;
+            }
+        }
+        finish();
+    }
+    /**
+     * Parse a UTF-8 file, mapping it into memory if it is small enough
+     * @param src the file
+     * @throws JSONException if there was a syntax or read error or the 
+     * input ended before the document did
+     */
+    public void parse( File src ) throws JSONException
+    {
+        try ( RandomAccessFile raf = new RandomAccessFile(src,"r") )
+        {
+            FileChannel fc = raf.getChannel();
+            if ( fc.size() <= Integer.MAX_VALUE )
+                parse( fc.map(FileChannel.MapMode.READ_ONLY,0,fc.size()) );
+            else
+                parse( new FileInputStream(raf.getFD()) );
+        }
+        catch ( IOException e )
+        {
+            throw new JSONException( e );
+        }
+    }
     /**
      * Test routine
-     * @param args first is name of JSON file
+     * @param args first is name of JSON folder
      */
     public static void main( String[] args )
     {
@@ -682,31 +1093,10 @@ public class ProgressiveParser
             {
                 try
                 {
-                    ProgressiveParser pp = new ProgressiveParser(rr);
-                    FileInputStream fis = new FileInputStream( files[i] );
-                    int len = (int)files[i].length();
-                    if ( len > 100 )
+                    if ( files[i].length() > 100 )
                     {
-                        byte[] data = new byte[len];
-                        fis.read( data );
-                        fis.close();
-                        Random r = new Random();
-                        int pos = 0;
-                        int den = (int)Math.round(Math.log(len));
-                        String text = new String( data );
-                        while ( pos < len )
-                        {
-                            int end = pos + r.nextInt( len/den );
-                            if ( end > len )
-                                end = len;
-                            if ( end > pos )
-                            {
-                                char[] dst = new char[end-pos];
-                                text.getChars( pos, end, dst, 0 );
-                                pp.parseData( dst );
-                                pos = end;
-                            }
-                        }
+                        ProgressiveParser pp = new ProgressiveParser(rr);
+                        pp.parse( files[i] );
                         System.out.println("Parsed "+files[i].getName()
                             +" correctly");
                     }
@@ -722,6 +1112,6 @@ public class ProgressiveParser
         }
         else
             System.out.println("usage: java ProgressiveParser <json-src>");
-        
+
     }
 }
@@ -0,0 +1,32 @@
+/* This file is part of calliope.
+ *
+ *  calliope is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  calliope is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with calliope.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package calliope.core.json.corcode;
+
+/**
+ * Callback to receive each range of a CorCode in full as it is parsed. 
+ * Only the range being read is kept in memory.
+ * @author desmond
+ */
+public interface RangeHandler 
+{
+    /**
+     * A range has been read
+     * @param r the range with its absolute offset, length, name, removed 
+     * flag and annotations, which the handler may keep
+     */
+    public void rangeComplete( Range r );
+}
@@ -0,0 +1,560 @@
+/* This file is part of calliope.
+ *
+ *  calliope is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  calliope is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with calliope.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package calliope.core.json.corcode;
+import calliope.core.constants.Formats;
+import calliope.core.constants.JSONKeys;
+import calliope.core.exception.JSONException;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import org.json.simple.JSONValue;
+
+/**
+ * A compact store of the ranges of a CorCode. Offsets and lengths are
+ * kept in int arrays, names as short ids into a dictionary and
+ * annotations in arrays shared by all the ranges. Ranges must be added in
+ * order of offset, as they are read. Overlap queries use interval indexes
+ * built on first use. Once all the ranges are added the table may be 
+ * queried from several threads at once; adding is not thread-safe.
+ * @author desmond
+ */
+public class RangeTable implements RangeHandler
+{
+    /** the style and format of the CorCode */
+    String style;
+    String format;
+    /** number of ranges */
+    int size;
+    /** absolute offset of each range */
+    int[] offsets;
+    /** length of each range */
+    int[] lens;
+    /** name of each range as an id in the dictionary, -1 if none */
+    short[] names;
+    /** which ranges are removed */
+    BitSet removed;
+    /** index of each range's first annotation; size+1 entries */
+    int[] firstAnnotations;
+    /** number of annotations */
+    int numAnnotations;
+    /** names of the annotations as ids in the dictionary */
+    short[] annotationNames;
+    /** values of the annotations */
+    Object[] annotationValues;
+    /** range and annotation names, indexed by id */
+    ArrayList<String> dictionary;
+    /** ids of the names in the dictionary */
+    HashMap<String,Short> ids;
+    /** one copy of each string value while ranges are added */
+    HashMap<String,String> values;
+    /** interval index of all the ranges, built when first needed */
+    volatile IntervalIndex index;
+    /** interval indexes of the ranges with each name id */
+    volatile ConcurrentHashMap<Short,IntervalIndex> indexes;
+    /**
+     * Create an empty table
+     */
+    public RangeTable()
+    {
+        this.style = Formats.DEFAULT;
+        this.format = Formats.STIL;
+        this.offsets = new int[64];
+        this.lens = new int[64];
+        this.names = new short[64];
+        this.firstAnnotations = new int[65];
+        this.removed = new BitSet();
+        this.annotationNames = new short[16];
+        this.annotationValues = new Object[16];
+        this.dictionary = new ArrayList<String>();
+        this.ids = new HashMap<String,Short>();
+        this.indexes = new ConcurrentHashMap<Short,IntervalIndex>();
+    }
+    /**
+     * Read in a CorCode document in one pass
+     * @param src the source document
+     * @return the table of its ranges
+     * @throws JSONException if the document could not be parsed or a 
+     * negative reloff put a range before the one it follows
+     */
+    public static RangeTable internalise( File src ) throws JSONException
+    {
+        RangeTable table = new RangeTable();
+        ProgressiveParser pp = new ProgressiveParser( table );
+        try
+        {
+            pp.parse( src );
+        }
+        catch ( IllegalArgumentException e )
+        {
+            // thrown by add through the parser's callback
+            throw new JSONException( "negative reloff: "+e.getMessage() );
+        }
+        if ( pp.getStyle() != null )
+            table.setStyle( pp.getStyle() );
+        if ( pp.getFormat() != null )
+            table.setFormat( pp.getFormat() );
+        table.trim();
+        return table;
+    }
+    /**
+     * Get the id of a name, adding it to the dictionary if needed
+     * @param name the name of a range or annotation
+     * @return its id or -1 if it is null
+     */
+    short intern( String name )
+    {
+        if ( name == null )
+            return -1;
+        Short id = ids.get( name );
+        if ( id == null )
+        {
+            if ( dictionary.size() > Short.MAX_VALUE )
+                throw new IllegalStateException("too many range names");
+            id = (short)dictionary.size();
+            dictionary.add( name );
+            ids.put( name, id );
+        }
+        return id.shortValue();
+    }
+    /**
+     * Look up a name in the dictionary
+     * @param id its id
+     * @return the name or null if the id is -1
+     */
+    String lookup( short id )
+    {
+        return (id<0)?null:dictionary.get( id );
+    }
+    /**
+     * Share one copy of each annotation value that is a string
+     * @param value the value of an annotation
+     * @return the shared copy or the value itself
+     */
+    Object share( Object value )
+    {
+        if ( value instanceof String )
+        {
+            if ( values == null )
+                values = new HashMap<String,String>();
+            String copy = values.get( (String)value );
+            if ( copy == null )
+                values.put( (String)value, (String)value );
+            else
+                return copy;
+        }
+        return value;
+    }
+    /**
+     * Make sure there is room for one more range
+     */
+    void ensureRange()
+    {
+        if ( size == offsets.length )
+        {
+            int newSize = Math.max( 16, offsets.length*2 );
+            int[] newOffsets = new int[newSize];
+            System.arraycopy( offsets, 0, newOffsets, 0, size );
+            offsets = newOffsets;
+            int[] newLens = new int[newSize];
+            System.arraycopy( lens, 0, newLens, 0, size );
+            lens = newLens;
+            short[] newNames = new short[newSize];
+            System.arraycopy( names, 0, newNames, 0, size );
+            names = newNames;
+            int[] newFirst = new int[newSize+1];
+            System.arraycopy( firstAnnotations, 0, newFirst, 0, size+1 );
+            firstAnnotations = newFirst;
+        }
+    }
+    /**
+     * Make sure there is room for one more annotation
+     */
+    void ensureAnnotation()
+    {
+        if ( numAnnotations == annotationNames.length )
+        {
+            int newSize = Math.max( 16, annotationNames.length*2 );
+            short[] newNames = new short[newSize];
+            System.arraycopy( annotationNames, 0, newNames, 0,
+                numAnnotations );
+            annotationNames = newNames;
+            Object[] newValues = new Object[newSize];
+            System.arraycopy( annotationValues, 0, newValues, 0,
+                numAnnotations );
+            annotationValues = newValues;
+        }
+    }
+    /**
+     * Shrink the arrays to fit and drop the table of shared values once 
+     * all the ranges have been added
+     */
+    public void trim()
+    {
+        int[] newOffsets = new int[size];
+        System.arraycopy( offsets, 0, newOffsets, 0, size );
+        offsets = newOffsets;
+        int[] newLens = new int[size];
+        System.arraycopy( lens, 0, newLens, 0, size );
+        lens = newLens;
+        short[] newNames = new short[size];
+        System.arraycopy( names, 0, newNames, 0, size );
+        names = newNames;
+        int[] newFirst = new int[size+1];
+        System.arraycopy( firstAnnotations, 0, newFirst, 0, size+1 );
+        firstAnnotations = newFirst;
+        short[] newAnnNames = new short[numAnnotations];
+        System.arraycopy( annotationNames, 0, newAnnNames, 0, numAnnotations );
+        annotationNames = newAnnNames;
+        Object[] newValues = new Object[numAnnotations];
+        System.arraycopy( annotationValues, 0, newValues, 0, numAnnotations );
+        annotationValues = newValues;
+        values = null;
+        dropIndexes();
+    }
+    /**
+     * Add a range after all the others
+     * @param r the range, whose offset must not be less than the last one's
+     * @throws IllegalArgumentException if the range is out of order
+     */
+    public void add( Range r )
+    {
+        if ( size > 0 && r.offset < offsets[size-1] )
+            throw new IllegalArgumentException("range at "+r.offset
+                +" added after range at "+offsets[size-1]);
+        ensureRange();
+        offsets[size] = r.offset;
+        lens[size] = r.len;
+        names[size] = intern( r.name );
+        if ( r.removed )
+            removed.set( size );
+        if ( r.annotations != null )
+        {
+            for ( int i=0;i<r.annotations.size();i++ )
+            {
+                Annotation a = r.annotations.get( i );
+                ensureAnnotation();
+                annotationNames[numAnnotations] = intern( a.name );
+                annotationValues[numAnnotations++] = share( a.value );
+            }
+        }
+        size++;
+        firstAnnotations[size] = numAnnotations;
+        dropIndexes();
+    }
+    /**
+     * Forget the interval indexes after the ranges have changed
+     */
+    void dropIndexes()
+    {
+        index = null;
+        indexes = new ConcurrentHashMap<Short,IntervalIndex>();
+    }
+    /**
+     * Receive a range from a ProgressiveParser
+     * @param r the range just read
+     */
+    @Override
+    public void rangeComplete( Range r )
+    {
+        add( r );
+    }
+    /**
+     * Set the style of the CorCode
+     * @param style the name of the style
+     */
+    public void setStyle( String style )
+    {
+        this.style = style;
+    }
+    /**
+     * Get the style of the CorCode
+     * @return the name of the style
+     */
+    public String getStyle()
+    {
+        return style;
+    }
+    /**
+     * Set the format of the CorCode
+     * @param format the name of the format
+     */
+    public void setFormat( String format )
+    {
+        this.format = format;
+    }
+    /**
+     * Get the format of the CorCode
+     * @return the name of the format
+     */
+    public String getFormat()
+    {
+        return format;
+    }
+    /**
+     * Get the number of ranges
+     * @return the number added so far
+     */
+    public int size()
+    {
+        return size;
+    }
+    /**
+     * Get the absolute offset of a range
+     * @param index the range's index
+     * @return its offset
+     */
+    public int getOffset( int index )
+    {
+        return offsets[index];
+    }
+    /**
+     * Get the length of a range
+     * @param index the range's index
+     * @return its length
+     */
+    public int getLength( int index )
+    {
+        return lens[index];
+    }
+    /**
+     * Get the name of a range
+     * @param index the range's index
+     * @return its name or null
+     */
+    public String getName( int index )
+    {
+        return lookup( names[index] );
+    }
+    /**
+     * Is a range removed?
+     * @param index the range's index
+     * @return true if it is
+     */
+    public boolean isRemoved( int index )
+    {
+        return removed.get( index );
+    }
+    /**
+     * Get the number of annotations of a range
+     * @param index the range's index
+     * @return the number, possibly 0
+     */
+    public int numAnnotations( int index )
+    {
+        return firstAnnotations[index+1]-firstAnnotations[index];
+    }
+    /**
+     * Get the name of one annotation of a range
+     * @param index the range's index
+     * @param which the annotation's index in the range
+     * @return the annotation's name
+     */
+    public String getAnnotationName( int index, int which )
+    {
+        return lookup( annotationNames[firstAnnotations[index]+which] );
+    }
+    /**
+     * Get the value of one annotation of a range
+     * @param index the range's index
+     * @param which the annotation's index in the range
+     * @return the annotation's value
+     */
+    public Object getAnnotationValue( int index, int which )
+    {
+        return annotationValues[firstAnnotations[index]+which];
+    }
+    /**
+     * Make a Range object for one range
+     * @param index the range's index
+     * @return a new Range with its name, removed flag and annotations
+     */
+    public Range getRange( int index )
+    {
+        Range r = new Range( getName(index), offsets[index], lens[index] );
+        r.removed = removed.get( index );
+        int last = firstAnnotations[index+1];
+        for ( int i=firstAnnotations[index];i<last;i++ )
+            r.addAnnotation( lookup(annotationNames[i]), annotationValues[i] );
+        return r;
+    }
+    /**
+     * Get the interval index of the ranges with a name. Two threads may 
+     * both build a missing index, but each sees a complete one.
+     * @param key the range name, or null for all ranges
+     * @return the index or null if no range has that name
+     */
+    IntervalIndex getIndex( String key )
+    {
+        if ( key == null )
+        {
+            IntervalIndex ii = index;
+            if ( ii == null )
+            {
+                ii = new IntervalIndex( offsets, lens, null, size );
+                index = ii;
+            }
+            return ii;
+        }
+        Short id = ids.get( key );
+        if ( id == null )
+            return null;
+        ConcurrentHashMap<Short,IntervalIndex> indexes = this.indexes;
+        IntervalIndex ii = indexes.get( id );
+        if ( ii == null )
+        {
+            short name = id.shortValue();
+            int count = 0;
+            for ( int i=0;i<size;i++ )
+                if ( names[i] == name )
+                    count++;
+            int[] members = new int[count];
+            for ( int i=0,j=0;i<size;i++ )
+                if ( names[i] == name )
+                    members[j++] = i;
+            ii = new IntervalIndex( offsets, lens, members, count );
+            IntervalIndex other = indexes.putIfAbsent( id, ii );
+            if ( other != null )
+                ii = other;
+        }
+        return ii;
+    }
+    /**
+     * Find the ranges that overlap a section of text. A range overlaps it 
+     * if it starts before offset+length and ends after offset, so one 
+     * that ends exactly at offset does not.
+     * @param key the range name desired, or null for any name
+     * @param offset the absolute offset of the section
+     * @param length the length of the section
+     * @return the indices of the ranges in document order, possibly none
+     */
+    public int[] find( String key, int offset, int length )
+    {
+        IntervalIndex ii = getIndex( key );
+        if ( ii == null )
+            return new int[0];
+        else
+            return ii.find( offset, length, Integer.MAX_VALUE );
+    }
+    /**
+     * Get all the ranges that overlap a section of text
+     * @param key the range name desired, or null for any name
+     * @param offset the absolute offset of the section
+     * @param length the length of the section
+     * @return the ranges in document order, possibly none
+     */
+    public ArrayList<Range> getAll( String key, int offset, int length )
+    {
+        int[] found = find( key, offset, length );
+        ArrayList<Range> list = new ArrayList<Range>( found.length );
+        for ( int i=0;i<found.length;i++ )
+            list.add( getRange(found[i]) );
+        return list;
+    }
+    /**
+     * Find the first range with a name that overlaps a section of text, 
+     * overlapping as find defines it. The search this replaced in 
+     * STILDocument sometimes also returned a range ending exactly at 
+     * offset; that is no longer so.
+     * @param key the range name desired
+     * @param offset the absolute offset of the section
+     * @param length the length of the section
+     * @return the first such range or null
+     */
+    public Range get( String key, int offset, int length )
+    {
+        IntervalIndex ii = getIndex( key );
+        int[] found = (ii==null)?null:ii.find( offset, length, 1 );
+        if ( found == null || found.length == 0 )
+            return null;
+        else
+            return getRange( found[0] );
+    }
+    /**
+     * Write the table as a STIL document
+     * @return the document as JSON
+     */
+    public String toJSONString()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"");
+        sb.append( JSONKeys.STYLE );
+        sb.append("\":");
+        sb.append( JSONValue.toJSONString(style) );
+        sb.append(",\"");
+        sb.append( JSONKeys.FORMAT );
+        sb.append("\":");
+        sb.append( JSONValue.toJSONString(format) );
+        sb.append(",\"");
+        sb.append( JSONKeys.RANGES );
+        sb.append("\":[");
+        int lastOffset = 0;
+        for ( int i=0;i<size;i++ )
+        {
+            if ( i > 0 )
+                sb.append(",");
+            sb.append("{\"");
+            sb.append( JSONKeys.NAME );
+            sb.append("\":");
+            sb.append( JSONValue.toJSONString(getName(i)) );
+            sb.append(",\"");
+            sb.append( JSONKeys.RELOFF );
+            sb.append("\":");
+            sb.append( offsets[i]-lastOffset );
+            lastOffset = offsets[i];
+            sb.append(",\"");
+            sb.append( JSONKeys.LEN );
+            sb.append("\":");
+            sb.append( lens[i] );
+            if ( removed.get(i) )
+            {
+                sb.append(",\"");
+                sb.append( JSONKeys.REMOVED );
+                sb.append("\":true");
+            }
+            int first = firstAnnotations[i];
+            int last = firstAnnotations[i+1];
+            if ( last > first )
+            {
+                sb.append(",\"");
+                sb.append( JSONKeys.ANNOTATIONS );
+                sb.append("\":[");
+                for ( int j=first;j<last;j++ )
+                {
+                    if ( j > first )
+                        sb.append(",");
+                    sb.append("{");
+                    sb.append( JSONValue.toJSONString(
+                        lookup(annotationNames[j])) );
+                    sb.append(":");
+                    sb.append( JSONValue.toJSONString(annotationValues[j]) );
+                    sb.append("}");
+                }
+                sb.append("]");
+            }
+            sb.append("}");
+        }
+        sb.append("]}");
+        return sb.toString();
+    }
+    @Override
+    public String toString()
+    {
+        return toJSONString();
+    }
+}
@@ -16,14 +16,11 @@
 
 package calliope.core.json.corcode;
 import org.json.simple.JSONObject;
-import org.json.simple.JSONValue;
 import calliope.core.constants.JSONKeys;
 import calliope.core.exception.JSONException;
 import calliope.core.constants.Formats;
 import java.io.File;
-import java.util.Set;
 import java.util.ArrayList;
-import calliope.core.Utils;
 /**
  *
  * @author desmond
@@ -31,8 +28,8 @@ import calliope.core.Utils;
 public class STILDocument extends JSONObject
 {
     ArrayList<JSONObject> ranges;
-    /** array of actual ranges with absolute offsets */
-    ArrayList<Range> rangeArray;
+    /** compact table of loaded ranges with absolute offsets */
+    RangeTable table;
     int lastOffset;
     
     public STILDocument()
@@ -73,103 +70,54 @@ public class STILDocument extends JSONObject
         return doc;
     }
     /**
-     * Read in a CorCode document
+     * Read in a CorCode document in one pass, keeping only its ranges
      * @param src the source document
      * @return the document
      */
     public static STILDocument internalise( File src ) throws Exception
     {
-        JSONObject doc = (JSONObject)JSONValue.parse( 
-            Utils.readStringFromFile(src) );
         STILDocument stil = new STILDocument();
-        stil.rangeArray = new ArrayList<Range>();
-        ArrayList list = (ArrayList)doc.get( JSONKeys.RANGES );
-        int currentOffset = 0;
-        for ( int i=0;i<list.size();i++ )
-        {
-            JSONObject subDoc = (JSONObject) list.get( i );
-            Integer len = (Integer)subDoc.get( JSONKeys.LEN );
-            Integer relOff = (Integer)subDoc.get( JSONKeys.RELOFF );
-            String name = (String) subDoc.get( JSONKeys.NAME );
-            ArrayList annotations = (ArrayList) subDoc.get( 
-                JSONKeys.ANNOTATIONS );
-            currentOffset += relOff.intValue();
-            Range r = new Range( name, currentOffset, len.intValue() );
-            if ( annotations != null )
-            {
-                for ( int j=0;j<annotations.size();j++ )
-                {
-                    JSONObject annotation = (JSONObject)annotations.get(j);
-                    // there is always only one key-value pair
-                    Set<String> keys = annotation.keySet();
-                    String[] array = new String[keys.size()];
-                    keys.toArray( array );
-                    r.addAnnotation( array[j], annotation.get(array[j]) );
-                }
-            }
-            stil.rangeArray.add( r );
-        }
+        stil.table = RangeTable.internalise( src );
+        stil.put( JSONKeys.STYLE, stil.table.getStyle() );
+        stil.put( JSONKeys.FORMAT, stil.table.getFormat() );
         return stil;
     }
+    /**
+     * Get the ranges of a loaded document
+     * @return the table of ranges or null if not loaded
+     */
+    public RangeTable getRangeTable()
+    {
+        return table;
+    }
+    /**
+     * Get all the ranges of a loaded document that overlap a section
+     * @param key the property name desired, or null for any
+     * @param offset the absolute offset
+     * @param length the length of the section
+     * @return the overlapping ranges in document order
+     */
+    public ArrayList<Range> getAll( String key, int offset, int length ) 
+        throws Exception
+    {
+        if ( table != null )
+            return table.getAll( key, offset, length );
+        else
+            throw new Exception("STILDocument not loaded");
+    }
     /**
      * Get the range information from a loaded document
      * @param key the property name desired
      * @param offset the absolute offset
      * @param length the length of the range
-     * @return a range object
+     * @return the first range of that name overlapping the section, or 
+     * null. A range that ends exactly at offset does not overlap it.
      */
     public Range get( String key, int offset, int length ) throws Exception
     {
-        if ( rangeArray != null )
-        {
-            int top,bottom,mid;
-            top = 0;
-            bottom = rangeArray.size()-1;
-            while ( top <= bottom )
-            {
-                mid = (bottom+top)/2;
-                Range r = rangeArray.get(mid);
-                if ( r.offset+r.len<offset )
-                    top = mid+1;
-                else if ( r.offset >= offset+length )
-                    bottom = mid-1;
-                else
-                {
-                    // overlap
-                    // 1. move start to first overlapping range
-                    int start = mid;
-                    while ( start > 0 && r.offset+r.len>offset )
-                    {
-                        start--;
-                        r = rangeArray.get(start);
-                    }
-                    if ( start<rangeArray.size()-1&& r.offset+r.len<=offset )
-                        start++;
-                    // 2. move end to last overlapping range
-                    int end = mid;
-                    do
-                    {
-                        r = rangeArray.get( end );
-                        if ( r.offset<offset+length )
-                            end++;
-                    }
-                    while ( end < rangeArray.size()-1 
-                        && r.offset<offset+length );
-                    if ( end>0&&r.offset>=offset+length )
-                        end--;
-                    // look in the range between start and end
-                    for ( int k=start;k<=end;k++ )
-                    {
-                        r = rangeArray.get( k );
-                        if ( r.name.equals(key) )
-                            return r;
-                    }
-                    break;
-                }
-            }
-        }
+        if ( table != null )
+            return table.get( key, offset, length );
         else
             throw new Exception("STILDocument not loaded");
-        return null;
     }
 }